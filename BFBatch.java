@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Batch mode of BFCompiler and BFCompilerPE: compiles every file of a list of files and directories
+// with every one of a list of flag sets in one JVM, the files concurrently, so the whole benchmark
+// suite pays JVM startup and warmup once instead of once per file and flag set.
+//   java BFCompiler --batch <file-or-directory>... [--flags "<flags>"]... [--out <dir>] [--jobs <n>]
+// Directories contribute their .b and .bf files. Each --flags adds a flag set, in the syntax of the
+// command line of the compiler; without any, the files are compiled once without flags. Every
+// input/flag pair is written to its own file in the output directory, batch_out by default, and the
+// time each took goes to summary.tsv there. A file is read and cleaned once for all of its flag sets,
+// and BFCompilerPE evaluates it once per evaluation budget.
+public class BFBatch {
+
+    public static final String DEFAULT_OUTPUT_DIRECTORY = "batch_out";
+
+    // The flags of the command line of the compilers
+    public static class Options {
+        public boolean optSl;
+        public boolean optScan;
+        public boolean avx2;
+        public boolean elf;
+        public boolean useCache;
+        public boolean profile;
+        public long maxSteps = BFCompilerPE.DEFAULT_MAX_STEPS;
+        public long maxMillis;
+
+        public static Options parse(String[] args, int from) {
+            Options options = new Options();
+            for (int i = from; i < args.length; i++) {
+                if (args[i].equals("--pe-steps") && i + 1 < args.length) {
+                    options.maxSteps = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--pe-time") && i + 1 < args.length) {
+                    options.maxMillis = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--o-simpleloops")) {
+                    options.optSl = true;
+                } else if (args[i].equals("--o-scanloops")) {
+                    options.optScan = true;
+                } else if (args[i].equals("-O")) {
+                    options.optSl = true;
+                    options.optScan = true;
+                } else if (args[i].equals("--avx2")) {
+                    options.avx2 = true;
+                } else if (args[i].equals("--elf")) {
+                    options.elf = true;
+                } else if (args[i].equals("--cache")) {
+                    options.useCache = true;
+                } else if (args[i].equals("--profile")) {
+                    options.profile = true;
+                }
+            }
+            return options;
+        }
+    }
+
+    // What a compile writes: program.s or program.o, and what the compiler prints
+    public static class Result {
+        public String file;
+        public byte[] output;
+        public String messages;
+
+        public Result(String file, byte[] output, String messages) {
+            this.file = file;
+            this.output = output;
+            this.messages = messages;
+        }
+    }
+
+    // Compiles cleaned code with compiler, BFCompiler or BFCompilerPE, as its main method would, but
+    // in memory. With --profile the code is the whole source instead, decoded as ISO-8859-1, as the
+    // profile gives offsets into it. peResults, when not null, keeps the partial evaluations of the
+    // code by budget, for the next compile of the same code.
+    public static Result compile(String compiler, Options options, String code, Map<String, BFCompilerPE.PartialEvaluationResult> peResults) {
+        if (!compiler.equals("BFCompiler") && !compiler.equals("BFCompilerPE")) {
+            throw new RuntimeException("Unknown compiler: " + compiler);
+        }
+        String file = options.elf ? "program.o" : "program.s";
+        BFCache cache = options.useCache ? BFCache.open() : null;
+        String key = null;
+        if (options.useCache) {
+            key = compiler.equals("BFCompiler") ? BFCache.key("BFCompiler", code, options.optSl, options.optScan, options.avx2, options.elf, options.profile)
+                    : BFCache.key("BFCompilerPE", code, options.optSl, options.optScan, options.avx2, options.elf, options.profile, options.maxSteps, options.maxMillis);
+            byte[] cached = cache.load(key);
+            if (cached != null) {
+                return new Result(file, cached, "Found in the compilation cache\n");
+            }
+        }
+
+        String messages = "";
+        byte[] output;
+        if (compiler.equals("BFCompiler")) {
+            output = options.elf ? BFCompiler.bfToElf(code, options.optSl, options.optScan, options.avx2, options.profile)
+                    : BFCompiler.bfToX86_64(code, options.optSl, options.optScan, options.avx2, options.profile).getBytes(StandardCharsets.UTF_8);
+        } else {
+            String cleanedCode = code;
+            BFSource.Locations locations = null;
+            if (options.profile) {
+                BFSource source = new BFSource(code, true);
+                cleanedCode = source.readCleanCode();
+                locations = source.locations();
+            }
+            // The evaluation does not depend on the other flags
+            String budget = options.maxSteps + " " + options.maxMillis;
+            BFCompilerPE.PartialEvaluationResult peResult = peResults != null ? peResults.get(budget) : null;
+            if (peResult == null) {
+                peResult = BFCompilerPE.partialEvaluate(cleanedCode, new BFCompilerPE.Budget(options.maxSteps, options.maxMillis));
+                if (peResults != null) {
+                    peResults.put(budget, peResult);
+                }
+            }
+            messages = "Partial evaluation stopped on " + peResult.stopReason + " after " + peResult.steps + " steps\n";
+            output = options.elf ? BFCompilerPE.generateObjectCode(peResult, options.optSl, options.optScan, options.avx2, locations)
+                    : BFCompilerPE.generateAssemblyCode(peResult, options.optSl, options.optScan, options.avx2, locations).getBytes(StandardCharsets.UTF_8);
+        }
+        if (options.useCache) {
+            cache.store(key, output);
+        }
+        return new Result(file, output, messages);
+    }
+
+    // One line of the summary
+    private static class Row {
+        String file;
+        String flags;
+        String output;
+        double millis;
+        long bytes;
+        String status;
+    }
+
+    // Runs the batch mode with the arguments after --batch. Exits with status 1 on bad arguments, an
+    // output directory that cannot be written, or any file that does not compile.
+    public static void main(String compiler, String[] args) {
+        List<Path> files = new ArrayList<>();
+        List<String> flagSets = new ArrayList<>();
+        Path outputDirectory = Paths.get(DEFAULT_OUTPUT_DIRECTORY);
+        int jobs = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--flags") && i + 1 < args.length) {
+                    flagSets.add(args[++i].trim());
+                } else if (args[i].equals("--out") && i + 1 < args.length) {
+                    outputDirectory = Paths.get(args[++i]);
+                } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+                    try {
+                        jobs = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid number of jobs: " + args[i]);
+                        System.exit(1);
+                    }
+                } else {
+                    addSources(Paths.get(args[i]), files);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error listing the Brainfuck files: " + e.getMessage());
+            System.exit(1);
+        }
+        if (files.isEmpty()) {
+            System.out.println("Usage: java " + compiler + " --batch <file-or-directory>... [--flags \"<flags>\"]... [--out <dir>] [--jobs <n>]");
+            System.exit(1);
+        }
+        try {
+            Files.createDirectories(outputDirectory);
+        } catch (IOException e) {
+            System.err.println("Error creating the output directory " + outputDirectory + ": " + e.getMessage());
+            System.exit(1);
+        }
+        if (!Files.isWritable(outputDirectory)) {
+            System.err.println("Error: the output directory " + outputDirectory + " is not writable");
+            System.exit(1);
+        }
+        if (flagSets.isEmpty()) {
+            flagSets.add("");
+        }
+
+        long start = System.nanoTime();
+        List<Row> rows = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, jobs));
+        try {
+            List<Future<List<Row>>> results = new ArrayList<>();
+            Path directory = outputDirectory;
+            for (Path file : files) {
+                results.add(workers.submit(() -> compileFile(compiler, file, flagSets, directory)));
+            }
+            for (Future<List<Row>> result : results) {
+                rows.addAll(result.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            workers.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Path summary = outputDirectory.resolve("summary.tsv");
+        boolean summaryWritten = true;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(summary))) {
+            out.println("file\tflags\toutput\tmillis\tbytes\tstatus");
+            for (Row row : rows) {
+                out.printf(Locale.ROOT, "%s\t%s\t%s\t%.3f\t%d\t%s%n", row.file, row.flags, row.output, row.millis, row.bytes, row.status);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing " + summary + ": " + e.getMessage());
+            summaryWritten = false;
+        }
+
+        int failed = 0;
+        System.out.printf(Locale.ROOT, "%-40s %-24s %10s %12s  %s%n", "file", "flags", "ms", "bytes", "status");
+        for (Row row : rows) {
+            System.out.printf(Locale.ROOT, "%-40s %-24s %10.1f %12d  %s%n", row.file, row.flags, row.millis, row.bytes, row.status);
+            if (!row.status.equals("ok")) {
+                failed++;
+            }
+        }
+        System.out.printf(Locale.ROOT, "Compiled %d files with %d flag sets in %.2f s%s; the outputs and %s are in %s%n", files.size(), flagSets.size(),
+                elapsed / 1e9, failed > 0 ? ", " + failed + " failed" : "", summary.getFileName(), outputDirectory);
+        if (failed > 0 || !summaryWritten) {
+            System.exit(1);
+        }
+    }
+
+    private static void addSources(Path path, List<Path> files) throws IOException {
+        if (!Files.isDirectory(path)) {
+            files.add(path);
+            return;
+        }
+        List<Path> sources = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(path, "*.{b,bf}")) {
+            for (Path entry : entries) {
+                sources.add(entry);
+            }
+        }
+        Collections.sort(sources);
+        files.addAll(sources);
+    }
+
+    // Compiles one file with every flag set. A file that does not compile is reported in its rows and
+    // does not stop the batch.
+    private static List<Row> compileFile(String compiler, Path file, List<String> flagSets, Path outputDirectory) {
+        List<Row> rows = new ArrayList<>();
+        // The whole source only when a flag set profiles
+        boolean profile = false;
+        for (String flags : flagSets) {
+            profile |= Options.parse(flags.split(" +"), 0).profile;
+        }
+        String cleanedCode = null;
+        String srcBfCode = null;
+        String readError = null;
+        try {
+            if (profile) {
+                srcBfCode = Files.readString(file, StandardCharsets.ISO_8859_1);
+                cleanedCode = BFCompiler.cleanCode(srcBfCode);
+            } else {
+                cleanedCode = BFSource.readAll(file);
+            }
+        } catch (IOException e) {
+            readError = "error reading: " + e.getMessage();
+        }
+        Map<String, BFCompilerPE.PartialEvaluationResult> peResults = new HashMap<>();
+        for (String flags : flagSets) {
+            Options options = Options.parse(flags.isEmpty() ? new String[0] : flags.split(" +"), 0);
+            Row row = new Row();
+            row.file = file.toString();
+            row.flags = flags;
+            row.output = file.getFileName() + "." + tag(flags) + (options.elf ? ".o" : ".s");
+            row.status = readError;
+            if (readError == null) {
+                long start = System.nanoTime();
+                try {
+                    Result result = compile(compiler, options, options.profile ? srcBfCode : cleanedCode, peResults);
+                    row.millis = (System.nanoTime() - start) / 1e6;
+                    row.bytes = result.output.length;
+                    Files.write(outputDirectory.resolve(row.output), result.output);
+                    row.status = "ok";
+                } catch (RuntimeException | StackOverflowError e) {
+                    row.status = "error: " + (e.getMessage() == null ? e.toString() : e.getMessage());
+                } catch (IOException e) {
+                    row.status = "error writing: " + e.getMessage();
+                }
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    // Part of the output file name for a flag set: "-O --avx2" becomes O_avx2
+    private static String tag(String flags) {
+        if (flags.isEmpty()) {
+            return "default";
+        }
+        return String.join("_", flags.replaceAll("(^| )-+", "$1").split(" +"));
+    }
+}
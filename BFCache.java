@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// On-disk cache of compiled programs, shared by BFCompiler, BFCompilerPE and BFDaemon with --cache.
+// An entry is the generated assembly or object file, named by the SHA-256 of the compiler version,
+// the compiler, its options and the cleaned code, so a hit skips partial evaluation, the passes and
+// code generation. Entries are written to a temporary file and renamed into place, so compiles running
+// in parallel never see half an entry. Reading an entry marks it as used, and the entries used least
+// recently are deleted once the cache grows past its size.
+public class BFCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    // Temporary files older than this were left by a compile that did not finish
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    // A batch or the daemon opens the cache for every compile, and reports a bad BF_CACHE_SIZE once
+    private static volatile boolean badSizeReported = false;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public BFCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    // The cache in BF_CACHE_DIR, or ~/.cache/bfcompiler, holding up to BF_CACHE_SIZE bytes. A size that
+    // is not a positive number is reported and the default used, as the cache is only an optimization.
+    public static BFCache open() {
+        String dir = System.getenv("BF_CACHE_DIR");
+        Path directory = dir != null ? Path.of(dir) : Path.of(System.getProperty("user.home"), ".cache", "bfcompiler");
+        String size = System.getenv("BF_CACHE_SIZE");
+        long maxBytes = DEFAULT_MAX_BYTES;
+        if (size != null) {
+            try {
+                maxBytes = Long.parseLong(size.trim());
+            } catch (NumberFormatException e) {
+                maxBytes = 0;
+            }
+            if (maxBytes <= 0) {
+                if (!badSizeReported) {
+                    badSizeReported = true;
+                    System.err.println("Ignoring BF_CACHE_SIZE=" + size + ", which is not a positive number of bytes; the cache holds up to " + DEFAULT_MAX_BYTES + " bytes");
+                }
+                maxBytes = DEFAULT_MAX_BYTES;
+            }
+        }
+        return new BFCache(directory, maxBytes);
+    }
+
+    // Name of the entry for the cleaned code compiled by compiler with the given options. Every option
+    // that changes the output, the output format included, must be passed.
+    public static String key(String compiler, String bfCode, Object... options) {
+        MessageDigest digest = sha256();
+        digest.update(version());
+        StringBuilder header = new StringBuilder(compiler);
+        for (Object option : options) {
+            header.append(' ').append(option);
+        }
+        digest.update(header.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(bfCode.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // The entry, or null when it is not in the cache
+    public byte[] load(String key) {
+        Path entry = directory.resolve(key);
+        try {
+            byte[] output = Files.readAllBytes(entry);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return output;
+        } catch (IOException e) {
+            // Missing, or evicted by another compile since
+            return null;
+        }
+    }
+
+    // Adds the entry, then evicts entries if the cache is over its size. An entry bigger than the whole
+    // cache is not stored. A cache that cannot be written only costs the next compile its hit, so
+    // failures are reported and otherwise ignored.
+    public void store(String key, byte[] output) {
+        if (output.length > maxBytes) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temp, output);
+                Files.move(temp, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            evict();
+        } catch (IOException e) {
+            System.err.println("Cannot write to the compilation cache: " + e.getMessage());
+        }
+    }
+
+    // Deletes the least recently used entries until the cache fits in maxBytes
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        Map<Path, Long> used = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                try {
+                    long modified = Files.getLastModifiedTime(file).toMillis();
+                    if (file.getFileName().toString().endsWith(".tmp")) {
+                        if (now - modified > STALE_TEMP_MILLIS) {
+                            Files.deleteIfExists(file);
+                        }
+                        continue;
+                    }
+                    long size = Files.size(file);
+                    entries.add(file);
+                    used.put(file, modified);
+                    sizes.put(file, size);
+                    total += size;
+                } catch (NoSuchFileException e) {
+                    // Evicted by another compile while listing
+                }
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        entries.sort(Comparator.comparing(used::get));
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entry);
+            total -= sizes.get(entry);
+        }
+    }
+
+    // Classes whose code decides what the compilers generate, with their nested classes
+    private static final Class<?>[] COMPILER_CLASSES = {BFCompiler.class, BFCompilerPE.class, BFIR.class, BFPasses.class, BFCodeGen.class, BFX86.class, BFSource.class};
+
+    private static byte[] version;
+
+    // Hash of the class files of the compilers, so a changed compiler never reads entries of an older one
+    private static synchronized byte[] version() {
+        if (version == null) {
+            MessageDigest digest = sha256();
+            Deque<Class<?>> classes = new ArrayDeque<>(List.of(COMPILER_CLASSES));
+            while (!classes.isEmpty()) {
+                Class<?> type = classes.poll();
+                String name = "/" + type.getName() + ".class";
+                try (InputStream in = BFCache.class.getResourceAsStream(name)) {
+                    if (in == null) {
+                        throw new RuntimeException("Cannot find the class file " + name);
+                    }
+                    digest.update(in.readAllBytes());
+                } catch (IOException e) {
+                    throw new RuntimeException("Cannot read the class file " + name + ": " + e.getMessage());
+                }
+                classes.addAll(List.of(type.getDeclaredClasses()));
+            }
+            version = digest.digest();
+        }
+        return version;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
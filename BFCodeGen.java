@@ -0,0 +1,959 @@
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+// x86-64 code generator shared by BFCompiler and BFCompilerPE. It writes through BFX86, either GNU as
+// text or the machine code of a relocatable ELF object. The tape pointer lives in %r15. Output goes to
+// the buffer of bf_wrapper.c, with the position in %r12 and the end of the buffer in %rbx. The tape of
+// bf_wrapper.c has guard areas and grows on demand, so the code does not check the pointer against
+// its bounds. An access only lands in a guard area if it is within TAPE_GUARD of a cell the code
+// touched before; the passes fold long runs of moves into offsets, moves and strides of any size, so
+// where one reaches further the code touches the cells in between first (emitProbes).
+//
+// With enableProfiling, every loop and every loop the passes turned into a multiply, scan, fill or
+// shift counts its runs in a 64-bit counter that bf_wrapper.c allocates and writes out at exit. The
+// counters are addressed from %r13. profile_sites, after the code, tells bf_wrapper.c where in the
+// source each counter's loop is.
+//
+// With enableBoundsChecks, for a tape with no guard areas like that of BFCompilerNative, the code
+// checks every access against bf_tape_start and bf_tape_end instead of probing. bf_main then returns
+// 0 when the program ends, and 1, after writing the output, in place of an access off the tape.
+public class BFCodeGen {
+
+    private final BFX86 x86;
+    private int labelId = 0;
+    private int loopId = 0;
+    // Bytes compared per step by the vector scan loops: 16 with SSE2, 32 with AVX2
+    private final int vectorWidth;
+
+    // Inaccessible memory on both sides of the tape: BF_TAPE_GUARD of bf_wrapper.c
+    public static final int TAPE_GUARD = 1 << 20;
+    // Distance between the cells emitProbes touches
+    private static final int PROBE_STEP = TAPE_GUARD / 4;
+    // Bound on the distance from %r15 to a cell touched before, kept below TAPE_GUARD / 2. Every
+    // segment of a BFSource starts from PROBE_STEP and ends below it, so the code of a segment does not
+    // depend on the segments before it, whether they are emitted before it or in parallel.
+    private int drift = 0;
+
+    private boolean boundsChecks;
+    // Cells around %r15 known to be on the tape with bounds checks, none when knownLow > knownHigh
+    private long knownLow = 1;
+    private long knownHigh = 0;
+
+    // Kinds of profile sites, in the order of the names bf_wrapper.c prints for them
+    public static final int SITE_LOOP = 0;
+    public static final int SITE_MULTIPLY = 1;
+    public static final int SITE_SCAN = 2;
+    public static final int SITE_FILL = 3;
+    public static final int SITE_SHIFT = 4;
+
+    private boolean profiling;
+    private BFSource.Locations locations;
+    // Maps the positions of the nodes emitted next to positions in the cleaned code of the source
+    private IntUnaryOperator sitePositions = IntUnaryOperator.identity();
+    // Counter of the next site, and the position and kind of every site this code generator emitted
+    private int siteId = 0;
+    private int siteCount = 0;
+    private int[] sites = new int[64];
+
+    public BFCodeGen() {
+        this(false);
+    }
+
+    // With avx2 the scan loops use 32-byte AVX2 compares; the program then needs a CPU with AVX2
+    public BFCodeGen(boolean avx2) {
+        this(avx2, false);
+    }
+
+    // With elf the code is encoded as machine code for toElf instead of written as text
+    public BFCodeGen(boolean avx2, boolean elf) {
+        this.vectorWidth = avx2 ? 32 : 16;
+        this.x86 = new BFX86(elf);
+    }
+
+    // Text written to out as it is generated instead of kept for toString; flush writes the rest
+    public BFCodeGen(boolean avx2, Writer out) {
+        this.vectorWidth = avx2 ? 32 : 16;
+        this.x86 = new BFX86(out);
+    }
+
+    // Text for one segment of a parallel emitProgram, with labels numbered from labelId and loopId and
+    // profile counters from siteId
+    private BFCodeGen(int vectorWidth, int labelId, int loopId, boolean profiling, int siteId) {
+        this.vectorWidth = vectorWidth;
+        this.x86 = new BFX86(false);
+        this.labelId = labelId;
+        this.loopId = loopId;
+        this.profiling = profiling;
+        this.siteId = siteId;
+    }
+
+    // Complete bf_main for an IR program that starts on an empty tape
+    public static String generate(List<BFIR.Node> program) {
+        return generate(program, false);
+    }
+
+    public static String generate(List<BFIR.Node> program, boolean avx2) {
+        BFCodeGen codeGen = new BFCodeGen(avx2);
+        codeGen.emitPrologue();
+        codeGen.emitProgram(program);
+        codeGen.emitEpilogue();
+        return codeGen.toString();
+    }
+
+    // The same bf_main as a relocatable ELF object, ready to link with bf_wrapper.o
+    public static byte[] generateElf(List<BFIR.Node> program, boolean avx2) {
+        BFCodeGen codeGen = new BFCodeGen(avx2, true);
+        codeGen.emitPrologue();
+        codeGen.emitProgram(program);
+        codeGen.emitEpilogue();
+        return codeGen.toElf();
+    }
+
+    // Counts the runs of every loop, for the profile bf_wrapper.c writes at exit. The nodes carry
+    // positions in the cleaned code, which locations maps back to the source; without locations the
+    // profile gives the positions in the cleaned code as offsets. Must be called before emitPrologue.
+    public void enableProfiling(BFSource.Locations locations) {
+        this.profiling = true;
+        this.locations = locations;
+    }
+
+    // Checks the pointer against the bounds of the tape before every access. Must be called before
+    // emitPrologue.
+    public void enableBoundsChecks() {
+        this.boundsChecks = true;
+    }
+
+    // Positions of the nodes emitted from now on in the cleaned code, for nodes parsed from code that
+    // is not the cleaned code itself, like the remaining code of BFCompilerPE
+    public void setSitePositions(IntUnaryOperator sitePositions) {
+        this.sitePositions = sitePositions;
+    }
+
+    public void emitPrologue() {
+        x86.beginFunction("bf_main");
+        x86.push(BFX86.RBX);
+        x86.push(BFX86.R12);
+        x86.push(BFX86.R15);
+        x86.comment("Initialize tape pointer");
+        x86.mov(BFX86.RDI, BFX86.R15);
+        x86.comment("Output position and end of the output buffer of bf_wrapper.c");
+        x86.mov(BFX86.rip("bf_out_pos"), BFX86.R12);
+        x86.mov(BFX86.rip("bf_out_end"), BFX86.RBX);
+        if (profiling) {
+            // %r14 only keeps the stack aligned for the calls
+            x86.push(BFX86.R13);
+            x86.push(BFX86.R14);
+            x86.comment("Profile counters, one per site of profile_sites");
+            x86.lea(BFX86.rip("profile_sites"), BFX86.RDI);
+            x86.call("bf_profile_start");
+            x86.mov(BFX86.RAX, BFX86.R13);
+        }
+    }
+
+    public void emitEpilogue() {
+        x86.label("end_program");
+        x86.comment("Write the buffered output");
+        x86.mov(BFX86.R12, BFX86.RDI);
+        x86.call("bf_flush");
+        if (boundsChecks) {
+            x86.alu("xor", BFX86.EAX, BFX86.EAX);
+            x86.label("return_program");
+        }
+        if (profiling) {
+            x86.pop(BFX86.R14);
+            x86.pop(BFX86.R13);
+        }
+        x86.pop(BFX86.R15);
+        x86.pop(BFX86.R12);
+        x86.pop(BFX86.RBX);
+        x86.ret();
+        if (boundsChecks) {
+            x86.label("tape_error");
+            x86.comment("The pointer left the tape: write the output and return 1");
+            x86.mov(BFX86.R12, BFX86.RDI);
+            x86.call("bf_flush");
+            x86.mov(1L, BFX86.EAX);
+            x86.jmp("return_program");
+        }
+        if (profiling) {
+            emitProfileSites();
+        }
+        x86.endFunction();
+    }
+
+    // The sites for bf_wrapper.c: their count, then the byte offset, line, column and kind of each, all
+    // 32-bit little-endian
+    private void emitProfileSites() {
+        byte[] table = new byte[4 + 16 * siteCount];
+        putInt(table, 0, siteCount);
+        for (int i = 0; i < siteCount; i++) {
+            int[] location = locations != null ? locations.locate(sites[2 * i]) : new int[] {sites[2 * i], 0, 0};
+            putInt(table, 4 + 16 * i, location[0]);
+            putInt(table, 8 + 16 * i, location[1]);
+            putInt(table, 12 + 16 * i, location[2]);
+            putInt(table, 16 + 16 * i, sites[2 * i + 1]);
+        }
+        x86.data("profile_sites", table, 0, table.length, false);
+    }
+
+    private static void putInt(byte[] bytes, int at, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[at + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    // Counts a run of the node at position, when profiling
+    private void emitSite(int position, int kind) {
+        if (!profiling) {
+            return;
+        }
+        addSite(sitePositions.applyAsInt(position), kind);
+        x86.incq(BFX86.mem(BFX86.R13, 8 * siteId++));
+    }
+
+    private void addSite(int position, int kind) {
+        if (2 * siteCount == sites.length) {
+            sites = Arrays.copyOf(sites, sites.length * 2);
+        }
+        sites[2 * siteCount] = position;
+        sites[2 * siteCount + 1] = kind;
+        siteCount++;
+    }
+
+    // Sets tape cells to values known at compile time, relative to the start of the tape. Cells of -1
+    // depend on input and are left as they are. Runs of known cells, trimmed to their non-zero cells and
+    // split at long stretches of zeros, are copied from a read-only image with one rep movsb each.
+    public void emitTapeImage(int[] tape) {
+        int cell = 0;
+        while (cell < tape.length) {
+            if (tape[cell] <= 0) {
+                cell++;
+                continue;
+            }
+            int start = cell;
+            int end = cell + 1;
+            cell++;
+            while (cell < tape.length && tape[cell] >= 0 && cell - end < IMAGE_GAP) {
+                if (tape[cell] > 0) {
+                    end = cell + 1;
+                }
+                cell++;
+            }
+            emitImageRun(tape, start, end);
+        }
+    }
+
+    // Zero cells a run of the tape image may span; copying them is cheaper than starting a new run
+    private static final int IMAGE_GAP = 64;
+
+    private void emitImageRun(int[] tape, int start, int end) {
+        emitReach(start, end - 1);
+        if (end - start < 16) {
+            for (int i = start; i < end; i++) {
+                if (tape[i] != 0) {
+                    x86.movb(tape[i], cell(i));
+                }
+            }
+            return;
+        }
+        String image = "tape_image_" + labelId++;
+        byte[] values = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            values[i - start] = (byte) tape[i];
+        }
+        x86.data(image, values, 0, values.length, false);
+        x86.lea(BFX86.rip(image), BFX86.RSI);
+        x86.lea(cell(start), BFX86.RDI);
+        x86.mov((long) (end - start), BFX86.ECX);
+        x86.repMovsb();
+    }
+
+    public void emitPointerAdjust(int delta) {
+        reachMove(delta);
+        if (delta != 0) {
+            x86.alu("add", (long) delta, BFX86.R15);
+        }
+    }
+
+    public void emitConstantOutput(byte[] outputs) {
+        emitConstantOutput(outputs, outputs.length);
+    }
+
+    // Prints bytes known at compile time. A single byte is stored in the output buffer inline; more
+    // are stored in .rodata and appended with one call to bf_write.
+    public void emitConstantOutput(byte[] outputs, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (length == 1) {
+            emitOutputByte((long) (outputs[0] & 0xFF));
+            return;
+        }
+        String data = "output_" + labelId++;
+        x86.data(data, outputs, 0, length, true);
+        x86.mov(BFX86.R12, BFX86.RDI);
+        x86.lea(BFX86.rip(data), BFX86.RSI);
+        x86.mov((long) length, BFX86.EDX);
+        x86.call("bf_write");
+        x86.mov(BFX86.RAX, BFX86.R12);
+    }
+
+    // Appends one byte, %al or an immediate, to the output buffer, and flushes it when full
+    private void emitOutputByte(Object source) {
+        String done = "output_done_" + labelId++;
+        BFX86.Mem position = BFX86.mem(BFX86.R12, 0);
+        if (source instanceof BFX86.Reg) {
+            x86.mov((BFX86.Reg) source, position);
+        } else {
+            x86.movb((int) (long) (Long) source, position);
+        }
+        x86.inc(BFX86.R12);
+        x86.alu("cmp", BFX86.RBX, BFX86.R12);
+        x86.j("b", done);
+        x86.mov(BFX86.R12, BFX86.RDI);
+        x86.call("bf_flush");
+        x86.mov(BFX86.RAX, BFX86.R12);
+        x86.label(done);
+    }
+
+    public void emitProgram(List<BFIR.Node> program) {
+        // Walked with explicit stacks so deeply nested programs do not exhaust the Java stack
+        List<List<BFIR.Node>> lists = new ArrayList<>();
+        int[] indices = new int[16];
+        int[] loopLabels = new int[16];
+        // With bounds checks, the cells known to be on the tape at the test of each loop
+        long[] loopBounds = new long[32];
+        lists.add(program);
+        int depth = 0;
+        while (true) {
+            List<BFIR.Node> list = lists.get(depth);
+            int i = indices[depth];
+            if (i < list.size()) {
+                BFIR.Node node = list.get(i);
+                indices[depth]++;
+                if (node instanceof BFIR.Loop) {
+                    boolean returns = boundsChecks && returnsToStart(((BFIR.Loop) node).body);
+                    if (returns) {
+                        // The pointer is the same at every test, so what is known on entry holds there
+                        emitCheck(0, 0);
+                    }
+                    x86.label("loop_start_" + labelId);
+                    if (!returns) {
+                        forgetBounds();
+                        emitCheck(0, 0);
+                    }
+                    x86.movzbl(cell(0), BFX86.EAX);
+                    x86.test(BFX86.EAX, BFX86.EAX);
+                    x86.j("e", "loop_end_" + labelId);
+                    drift = 0;
+                    // Counted once per iteration
+                    emitSite(node.position, SITE_LOOP);
+
+                    depth++;
+                    if (depth == indices.length) {
+                        indices = Arrays.copyOf(indices, indices.length * 2);
+                        loopLabels = Arrays.copyOf(loopLabels, loopLabels.length * 2);
+                        loopBounds = Arrays.copyOf(loopBounds, loopBounds.length * 2);
+                    }
+                    if (depth == lists.size()) {
+                        lists.add(((BFIR.Loop) node).body);
+                    } else {
+                        lists.set(depth, ((BFIR.Loop) node).body);
+                    }
+                    indices[depth] = 0;
+                    loopLabels[depth] = labelId;
+                    loopBounds[2 * depth] = knownLow;
+                    loopBounds[2 * depth + 1] = knownHigh;
+                    labelId++;
+                } else {
+                    emitNode(node);
+                }
+            } else {
+                if (depth == 0) {
+                    break;
+                }
+                x86.jmp("loop_start_" + loopLabels[depth]);
+                x86.label("loop_end_" + loopLabels[depth]);
+                // Only reached from the test of the loop
+                drift = 0;
+                knownLow = loopBounds[2 * depth];
+                knownHigh = loopBounds[2 * depth + 1];
+                depth--;
+            }
+        }
+    }
+
+    // One segment of a BFSource
+    private void emitSegment(List<BFIR.Node> program) {
+        drift = PROBE_STEP;
+        forgetBounds();
+        emitProgram(program);
+        endDrift();
+    }
+
+    // Parses, optimizes and emits the program in source one segment at a time, so the IR of only one
+    // segment is in memory at once. BFSource cuts where the passes give the same code as for the whole
+    // program.
+    public void emitProgram(BFSource source, BFPasses.PassManager passManager) {
+        endDrift();
+        for (String segment = source.nextSegment(); segment != null; segment = source.nextSegment()) {
+            emitSegment(passManager.run(BFIR.parse(segment, source.segmentPosition())));
+        }
+    }
+
+    // Segments parsed and emitted at once per thread of the pool, enough to keep every thread busy
+    // without holding much more of the program than the serial emitProgram
+    private static final int SEGMENTS_PER_THREAD = 2;
+
+    // The same code as the serial emitProgram, with the segments parsed, optimized and emitted on pool
+    // a batch at a time. The labels each segment takes are counted from its IR first, so every segment
+    // numbers its labels from where the serial code generator would be, and the text of the segments
+    // is appended in order. Machine code is emitted serially, as the jumps are sized over all of it.
+    public void emitProgram(BFSource source, BFPasses.PassManager passManager, ForkJoinPool pool) {
+        if (pool.getParallelism() == 1) {
+            emitProgram(source, passManager);
+            return;
+        }
+        endDrift();
+        int batchSize = pool.getParallelism() * SEGMENTS_PER_THREAD;
+        List<String> segments = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        while (true) {
+            segments.clear();
+            positions.clear();
+            for (String segment; segments.size() < batchSize && (segment = source.nextSegment()) != null; ) {
+                segments.add(segment);
+                positions.add(source.segmentPosition());
+            }
+            if (segments.isEmpty()) {
+                return;
+            }
+            List<List<BFIR.Node>> programs = inParallel(pool, segments.size(), i -> passManager.run(BFIR.parse(segments.get(i), positions.get(i))));
+            if (x86.isMachineCode()) {
+                for (List<BFIR.Node> program : programs) {
+                    emitSegment(program);
+                }
+                continue;
+            }
+
+            int[] labelIds = new int[programs.size()];
+            int[] loopIds = new int[programs.size()];
+            int[] siteIds = new int[programs.size()];
+            for (int i = 0; i < programs.size(); i++) {
+                labelIds[i] = labelId;
+                loopIds[i] = loopId;
+                siteIds[i] = siteId;
+                int[] used = labelsUsed(programs.get(i));
+                labelId += used[0];
+                loopId += used[1];
+                siteId += profiling ? used[2] : 0;
+            }
+            List<BFCodeGen> segmentCodeGens = inParallel(pool, programs.size(), i -> {
+                BFCodeGen segmentCodeGen = new BFCodeGen(vectorWidth, labelIds[i], loopIds[i], profiling, siteIds[i]);
+                segmentCodeGen.boundsChecks = boundsChecks;
+                segmentCodeGen.emitSegment(programs.get(i));
+                return segmentCodeGen;
+            });
+            drift = PROBE_STEP;
+            for (BFCodeGen segmentCodeGen : segmentCodeGens) {
+                x86.text(segmentCodeGen.toString());
+                for (int i = 0; i < segmentCodeGen.siteCount; i++) {
+                    addSite(sitePositions.applyAsInt(segmentCodeGen.sites[2 * i]), segmentCodeGen.sites[2 * i + 1]);
+                }
+            }
+        }
+    }
+
+    // Runs work(i) for every i below count on pool and returns the results in order
+    private static <T> List<T> inParallel(ForkJoinPool pool, int count, IntFunction<T> work) {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            tasks.add(pool.submit(() -> work.apply(index)));
+        }
+        List<T> results = new ArrayList<>();
+        for (ForkJoinTask<T> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    // The labels emitProgram takes for program, {labelId, loopId, siteId}: one labelId for every loop,
+    // output and multiply loop, one loopId for every scan loop, and one profile site for every loop and
+    // every node emitSite counts. Must follow the emitters below.
+    private static int[] labelsUsed(List<BFIR.Node> program) {
+        int[] used = new int[3];
+        BFIR.rewriteLoops(program, loop -> {
+            countLabels(loop.body, used);
+            used[0]++;
+            used[2]++;
+            return loop;
+        });
+        countLabels(program, used);
+        return used;
+    }
+
+    private static void countLabels(List<BFIR.Node> block, int[] used) {
+        for (BFIR.Node node : block) {
+            if (node instanceof BFIR.Output || node instanceof BFIR.MultiplyLoop
+                    || node instanceof BFIR.ConstantOutput && ((BFIR.ConstantOutput) node).length > 0) {
+                used[0]++;
+            } else if (node instanceof BFIR.ScanLoop) {
+                used[1]++;
+            }
+            if (node instanceof BFIR.MultiplyLoop || node instanceof BFIR.ScanLoop || node instanceof BFIR.Fill || node instanceof BFIR.ShiftRange) {
+                used[2]++;
+            }
+        }
+    }
+
+    private void emitNode(BFIR.Node node) {
+        if (node instanceof BFIR.Add) {
+            BFIR.Add add = (BFIR.Add) node;
+            emitReach(add.offset, add.offset);
+            int delta = (byte) add.delta;
+            if (delta == 1) {
+                x86.inc(cell(add.offset));
+            } else if (delta == -1) {
+                x86.dec(cell(add.offset));
+            } else if (delta != 0) {
+                x86.alu("add", (long) (add.delta & 0xFF), cell(add.offset));
+            }
+        } else if (node instanceof BFIR.Move) {
+            int delta = ((BFIR.Move) node).delta;
+            reachMove(delta);
+            if (delta == 1) {
+                x86.inc(BFX86.R15);
+            } else if (delta == -1) {
+                x86.dec(BFX86.R15);
+            } else if (delta != 0) {
+                x86.alu("add", (long) delta, BFX86.R15);
+            }
+        } else if (node instanceof BFIR.Output) {
+            emitReach(((BFIR.Output) node).offset, ((BFIR.Output) node).offset);
+            x86.movzbl(cell(((BFIR.Output) node).offset), BFX86.EAX);
+            emitOutputByte(BFX86.AL);
+        } else if (node instanceof BFIR.ConstantOutput) {
+            BFIR.ConstantOutput output = (BFIR.ConstantOutput) node;
+            emitConstantOutput(output.values, output.length);
+        } else if (node instanceof BFIR.Input) {
+            emitReach(((BFIR.Input) node).offset, ((BFIR.Input) node).offset);
+            // bf_read may flush the output, and leaves the new position in bf_out_pos
+            x86.mov(BFX86.R12, BFX86.RDI);
+            x86.call("bf_read");
+            x86.mov(BFX86.rip("bf_out_pos"), BFX86.R12);
+            x86.mov(BFX86.AL, cell(((BFIR.Input) node).offset));
+        } else if (node instanceof BFIR.MultiplyLoop) {
+            emitSite(node.position, SITE_MULTIPLY);
+            emitMultiplyLoop((BFIR.MultiplyLoop) node);
+        } else if (node instanceof BFIR.ScanLoop) {
+            emitSite(node.position, SITE_SCAN);
+            emitScanLoop((BFIR.ScanLoop) node);
+            // Every scan ends reading the cell it stops on
+            drift = 0;
+            knownLow = 0;
+            knownHigh = 0;
+        } else if (node instanceof BFIR.Fill) {
+            emitSite(node.position, SITE_FILL);
+            emitFill((BFIR.Fill) node);
+        } else if (node instanceof BFIR.ShiftRange) {
+            emitSite(node.position, SITE_SHIFT);
+            emitShiftRange((BFIR.ShiftRange) node);
+        }
+    }
+
+    private void emitMultiplyLoop(BFIR.MultiplyLoop loop) {
+        String skip = "multiply_skip_" + labelId++;
+        emitCheck(0, 0);
+        x86.movzbl(cell(0), BFX86.EAX);
+        x86.test(BFX86.EAX, BFX86.EAX);
+        x86.j("e", skip);
+        drift = 0;
+        // What is known at the test holds after the loop too, whether the loop runs or not
+        long testLow = knownLow;
+        long testHigh = knownHigh;
+        if (!loop.pointerEffects.isEmpty()) {
+            emitReach(loop.pointerEffects.firstKey(), loop.pointerEffects.lastKey());
+        }
+        // Trip count in %eax; only its low byte matters, like every cell update
+        int factor = loop.tripCountFactor();
+        if (factor == -1) {
+            x86.neg(BFX86.EAX);
+        } else if (factor != 1) {
+            x86.imul(factor, BFX86.EAX, BFX86.EAX);
+        }
+
+        for (Map.Entry<Integer, Integer> entry : loop.pointerEffects.entrySet()) {
+            int pos = entry.getKey();
+            int effect = (byte) (int) entry.getValue();
+            if (effect == 1) {
+                x86.alu("add", BFX86.AL, cell(pos));
+            } else if (effect == -1) {
+                x86.alu("sub", BFX86.AL, cell(pos));
+            } else {
+                emitMultiply(Math.abs(effect));
+                x86.alu(effect > 0 ? "add" : "sub", BFX86.CL, cell(pos));
+            }
+        }
+
+        x86.movb(0, cell(0));
+        x86.label(skip);
+        drift = 0;
+        knownLow = testLow;
+        knownHigh = testHigh;
+    }
+
+    // %ecx = %eax * factor, with lea or a shift for the small factors that allow it
+    private void emitMultiply(int factor) {
+        switch (factor) {
+            case 2:
+                x86.lea(BFX86.mem(BFX86.RAX, BFX86.RAX, 1, 0), BFX86.ECX);
+                return;
+            case 3:
+            case 5:
+            case 9:
+                x86.lea(BFX86.mem(BFX86.RAX, BFX86.RAX, factor - 1, 0), BFX86.ECX);
+                return;
+            case 4:
+            case 8:
+                x86.lea(BFX86.mem(null, BFX86.RAX, factor, 0), BFX86.ECX);
+                return;
+            default:
+                break;
+        }
+        if ((factor & (factor - 1)) == 0) {
+            x86.mov(BFX86.EAX, BFX86.ECX);
+            x86.shift("shl", (long) Integer.numberOfTrailingZeros(factor), BFX86.ECX);
+        } else {
+            x86.imul(factor, BFX86.EAX, BFX86.ECX);
+        }
+    }
+
+    // Scans with strides up to 8 compare a whole aligned block of cells at once and keep only the
+    // lanes the stride can land on. The first block is the one holding the pointer, with the lanes
+    // behind the pointer masked off, so an unaligned start still takes the vector loop. Aligned loads
+    // never cross a page, and the tape starts on a page, so a block is either all tape or all guard
+    // page: a scan off the end of the tape faults there and grows the tape, one off its start stops
+    // with an error.
+    private void emitScanLoop(BFIR.ScanLoop loop) {
+        int stride = Math.abs(loop.stride);
+        if (stride > 8) {
+            emitScalarScanLoop(loop);
+            return;
+        }
+        int width = vectorWidth;
+        long laneMask = (width == 32 ? 0xFFFFFFFFL : 0xFFFFL);
+        long strideLanes = 0;
+        for (int i = 0; i < width; i += stride) {
+            strideLanes |= 1L << i;
+        }
+        String direction = loop.stride > 0 ? "right" : "left";
+        String found = "scan_" + direction + "_found_" + loopId;
+        String next = "scan_" + direction + "_loop_" + loopId;
+
+        x86.comment("Lanes the stride lands on in every block");
+        x86.mov(BFX86.R15, BFX86.RCX);
+        x86.alu("and", (long) (stride - 1), BFX86.ECX);
+        x86.mov(strideLanes, BFX86.EDI);
+        x86.shift("shl", BFX86.CL, BFX86.EDI);
+        x86.comment("Aligned block holding the pointer");
+        x86.mov(BFX86.R15, BFX86.RDX);
+        x86.alu("and", (long) -width, BFX86.RDX);
+        x86.mov(BFX86.R15, BFX86.RCX);
+        if (loop.stride > 0) {
+            x86.comment("Of those, the lanes from the pointer on");
+            x86.alu("and", (long) (width - 1), BFX86.ECX);
+            x86.mov(strideLanes, BFX86.ESI);
+            x86.shift("shl", BFX86.CL, BFX86.ESI);
+        } else {
+            x86.comment("Of those, the lanes up to the pointer");
+            x86.not(BFX86.ECX);
+            x86.alu("and", (long) (width - 1), BFX86.ECX);
+            x86.mov((strideLanes << (stride - 1)) & laneMask, BFX86.ESI);
+            x86.shift("shr", BFX86.CL, BFX86.ESI);
+        }
+        emitCompareBlock();
+        x86.alu("and", BFX86.ESI, BFX86.EAX);
+        x86.j("ne", found);
+        x86.label(next);
+        x86.alu(loop.stride > 0 ? "add" : "sub", (long) width, BFX86.RDX);
+        emitCompareBlock();
+        x86.alu("and", BFX86.EDI, BFX86.EAX);
+        x86.j("e", next);
+        x86.label(found);
+        if (loop.stride > 0) {
+            x86.comment("First zero after the pointer");
+            x86.tzcnt(BFX86.EAX, BFX86.EAX);
+        } else {
+            x86.comment("Last zero before the pointer");
+            x86.bsr(BFX86.EAX, BFX86.EAX);
+        }
+        x86.lea(BFX86.mem(BFX86.RDX, BFX86.RAX, 1, 0), BFX86.R15);
+        if (width == 32) {
+            x86.vzeroupper();
+        }
+        loopId++;
+    }
+
+    // %eax = one bit per zero cell in the aligned block at (%rdx)
+    private void emitCompareBlock() {
+        BFX86.Mem block = BFX86.mem(BFX86.RDX, 0);
+        if (boundsChecks) {
+            // The tape starts and ends on a block, so the block is on it if its start is
+            emitBound(BFX86.RDX, "bf_tape_start", "a");
+            emitBound(BFX86.RDX, "bf_tape_end", "be");
+        }
+        if (vectorWidth == 32) {
+            x86.vpxor(BFX86.YMM1, BFX86.YMM1, BFX86.YMM1);
+            x86.vpcmpeqb(block, BFX86.YMM1, BFX86.YMM0);
+            x86.vpmovmskb(BFX86.YMM0, BFX86.EAX);
+        } else {
+            x86.pxor(BFX86.XMM1, BFX86.XMM1);
+            x86.pcmpeqb(block, BFX86.XMM1);
+            x86.pmovmskb(BFX86.XMM1, BFX86.EAX);
+        }
+    }
+
+    // Strides wider than 8 visit at most two cells of a block and scan cell by cell
+    private void emitScalarScanLoop(BFIR.ScanLoop loop) {
+        String direction = loop.stride > 0 ? "right" : "left";
+        String next = "scan_" + direction + "_loop_" + loopId;
+        String exit = "scan_" + direction + "_exit_" + loopId;
+        x86.label(next);
+        forgetBounds();
+        emitCheck(0, 0);
+        x86.movzbl(cell(0), BFX86.EAX);
+        x86.test(BFX86.EAX, BFX86.EAX);
+        x86.j("e", exit);
+        drift = 0;
+        reachMove(loop.stride);
+        x86.alu("add", (long) loop.stride, BFX86.R15);
+        x86.jmp(next);
+        x86.label(exit);
+        drift = 0;
+        loopId++;
+    }
+
+    // Stores the value into every cell of the range: 16 bytes at a time from %xmm0, the rest from %rax
+    private void emitFill(BFIR.Fill fill) {
+        emitReach(fill.offset, fill.offset + fill.length - 1);
+        if (fill.value == 0) {
+            x86.alu("xor", BFX86.EAX, BFX86.EAX);
+        } else {
+            x86.movabs(fill.value * 0x0101010101010101L, BFX86.RAX);
+        }
+        if (fill.length >= 16) {
+            x86.movq(BFX86.RAX, BFX86.XMM0);
+            x86.punpcklqdq(BFX86.XMM0, BFX86.XMM0);
+        }
+        int offset = fill.offset;
+        int end = fill.offset + fill.length;
+        for (; end - offset >= 16; offset += 16) {
+            x86.movdqu(BFX86.XMM0, cell(offset));
+        }
+        for (int size = 8; size >= 1; size /= 2) {
+            for (; end - offset >= size; offset += size) {
+                x86.mov(register(size), cell(offset));
+            }
+        }
+    }
+
+    private void emitShiftRange(BFIR.ShiftRange shift) {
+        int first = shift.offset;
+        int last = shift.offset + shift.length - 1;
+        int lead = shift.shift < 0 ? first : last;
+        emitReach(Math.min(first, lead + shift.shift), Math.max(last, lead + shift.shift));
+        x86.movzbl(cell(lead), BFX86.EAX);
+        x86.alu("add", BFX86.AL, cell(lead + shift.shift));
+        if (shift.shift < 0) {
+            emitCopy(first + 1, first, shift.length - 1);
+            x86.movb(0, cell(last));
+        } else {
+            emitCopy(first, first + 1, shift.length - 1);
+            x86.movb(0, cell(first));
+        }
+    }
+
+    // memmove of length cells between two ranges that overlap by all but one cell. Every chunk is
+    // loaded before it is stored, and the chunks go in the direction of the copy so no chunk is
+    // overwritten before it is read.
+    private void emitCopy(int from, int to, int length) {
+        List<int[]> chunks = new ArrayList<>();
+        int done = 0;
+        for (int size = 16; size >= 1; size /= 2) {
+            for (; length - done >= size; done += size) {
+                chunks.add(new int[]{done, size});
+            }
+        }
+        if (to > from) {
+            Collections.reverse(chunks);
+        }
+        for (int[] chunk : chunks) {
+            int at = chunk[0];
+            int size = chunk[1];
+            if (size == 16) {
+                x86.movdqu(cell(from + at), BFX86.XMM0);
+                x86.movdqu(BFX86.XMM0, cell(to + at));
+            } else {
+                x86.mov(cell(from + at), register(size));
+                x86.mov(register(size), cell(to + at));
+            }
+        }
+    }
+
+    // Before a move of the pointer by delta, touches a cell every PROBE_STEP on the way when the move
+    // would take it too far from the cells touched before
+    private void reachMove(int delta) {
+        if (boundsChecks) {
+            knownLow -= delta;
+            knownHigh -= delta;
+            return;
+        }
+        if (drift + Math.abs((long) delta) >= TAPE_GUARD / 2) {
+            emitProbes(Math.min(delta, 0), Math.max(delta, 0));
+            // The last probe is at most PROBE_STEP before the new position
+            drift = (int) ((Math.abs((long) delta) - 1) % PROBE_STEP + 1);
+        } else {
+            drift += Math.abs(delta);
+        }
+    }
+
+    // Makes the cells from low to high, which the next instructions access in order, safe to access:
+    // touches cells from %r15 out to them first if they are too far from the cells touched before
+    private void emitReach(int low, int high) {
+        if (boundsChecks) {
+            emitCheck(low, high);
+            return;
+        }
+        long far = Math.max(Math.abs((long) low), Math.abs((long) high));
+        if (drift + far >= TAPE_GUARD / 2) {
+            emitProbes(Math.min(low, 0), Math.max(high, 0));
+        } else if (low > 0 || high < 0) {
+            drift = (int) Math.min(drift, Math.min(Math.abs((long) low), Math.abs((long) high)));
+        } else {
+            drift = 0;
+        }
+    }
+
+    // Touches the cell under the pointer, within TAPE_GUARD / 2 of a cell touched before, and then a
+    // cell every PROBE_STEP towards low and high. A probe past the end of the tape grows it, and one in
+    // a guard area stops the program, as the access it precedes would have.
+    private void emitProbes(int low, int high) {
+        x86.alu("cmp", 0L, cell(0));
+        for (long at = PROBE_STEP; at < high; at += PROBE_STEP) {
+            x86.alu("cmp", 0L, cell((int) at));
+        }
+        for (long at = -PROBE_STEP; at > low; at -= PROBE_STEP) {
+            x86.alu("cmp", 0L, cell((int) at));
+        }
+        drift = 0;
+    }
+
+    // Ends within PROBE_STEP of a touched cell, where the next segment starts
+    private void endDrift() {
+        if (!boundsChecks && drift > PROBE_STEP) {
+            emitProbes(0, 0);
+        }
+    }
+
+    // Whether the pointer is back where it started after every run of body: its moves add up to zero
+    // and it holds no loop, which may move the pointer any distance
+    private static boolean returnsToStart(List<BFIR.Node> body) {
+        long pointer = 0;
+        for (BFIR.Node node : body) {
+            if (node instanceof BFIR.Move) {
+                pointer += ((BFIR.Move) node).delta;
+            } else if (node instanceof BFIR.Loop || node instanceof BFIR.ScanLoop) {
+                return false;
+            }
+        }
+        return pointer == 0;
+    }
+
+    // With bounds checks, jumps to tape_error unless the cells from low to high are on the tape. The
+    // cells between two cells on the tape are on it too, so only an end beyond the known cells is
+    // checked.
+    private void emitCheck(long low, long high) {
+        if (!boundsChecks) {
+            return;
+        }
+        boolean known = knownLow <= knownHigh;
+        boolean checkLow = !known || low < knownLow;
+        if (checkLow) {
+            emitBound(address(low), "bf_tape_start", "a");
+        }
+        if (!known || high > knownHigh) {
+            // %rcx still holds the address when low is high
+            emitBound(checkLow && low == high && low != 0 ? BFX86.RCX : address(high), "bf_tape_end", "be");
+        }
+        knownLow = known ? Math.min(knownLow, low) : low;
+        knownHigh = known ? Math.max(knownHigh, high) : high;
+    }
+
+    // A register holding the address of the cell at offset: %r15 itself, or %rcx
+    private BFX86.Reg address(long offset) {
+        if (offset == 0) {
+            return BFX86.R15;
+        }
+        x86.lea(cell((int) offset), BFX86.RCX);
+        return BFX86.RCX;
+    }
+
+    // Jumps to tape_error if the bound compares to the address as condition says
+    private void emitBound(BFX86.Reg address, String bound, String condition) {
+        x86.alu("cmp", address, BFX86.rip(bound));
+        x86.j(condition, "tape_error");
+    }
+
+    // After a label other code jumps to, where the pointer may be anywhere
+    private void forgetBounds() {
+        knownLow = 1;
+        knownHigh = 0;
+    }
+
+    // The part of %rax that holds size bytes
+    private static BFX86.Reg register(int size) {
+        switch (size) {
+            case 8:
+                return BFX86.RAX;
+            case 4:
+                return BFX86.EAX;
+            case 2:
+                return BFX86.AX;
+            default:
+                return BFX86.AL;
+        }
+    }
+
+    private static BFX86.Mem cell(int offset) {
+        return BFX86.mem(BFX86.R15, offset);
+    }
+
+    // The object file of a code generator created with elf set
+    public byte[] toElf() {
+        return x86.toElf();
+    }
+
+    // The machine code of a code generator created with elf set, linked to run at address base
+    public byte[] toImage(long base, Map<String, Long> symbols) {
+        return x86.toImage(base, symbols);
+    }
+
+    public int imageSize() {
+        return x86.imageSize();
+    }
+
+    // Writes the rest of the text of a code generator created with out
+    public void flush() {
+        x86.flush();
+    }
+
+    @Override
+    public String toString() {
+        return x86.toString();
+    }
+}
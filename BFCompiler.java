@@ -1,54 +1,116 @@
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class BFCompiler {
 
     public static void main(String[] args) {
         boolean optSl = false;
         boolean optScan = false;
-        if (!(args.length == 1 || args.length == 2)) {
-            System.out.println("Usage: java BFCompiler <brainfuck_file.bf> [[--o-simpleloops] or [--o-scanloops] or -O]");
+        boolean avx2 = false;
+        boolean elf = false;
+        boolean useCache = false;
+        boolean profile = false;
+        if (args.length < 1) {
+            System.out.println("Usage: java BFCompiler <brainfuck_file.bf> [[--o-simpleloops] or [--o-scanloops] or -O] [--avx2] [--elf] [--cache] [--profile]");
+            System.out.println("       java BFCompiler --batch <file-or-directory>... [--flags \"<flags>\"]... [--out <dir>] [--jobs <n>]");
             return;
         }
-        if (args.length == 2) {
-            if (args[1].equals("--o-simpleloops")) {
+        if (args[0].equals("--batch")) {
+            BFBatch.main("BFCompiler", Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--o-simpleloops")) {
                 optSl = true;
-            } else if (args[1].equals("--o-scanloops")) {
+            } else if (args[i].equals("--o-scanloops")) {
                 optScan = true;
-            } else if (args[1].equals("-O")) {
+            } else if (args[i].equals("-O")) {
                 optSl = true;
                 optScan = true;
+            } else if (args[i].equals("--avx2")) {
+                avx2 = true;
+            } else if (args[i].equals("--elf")) {
+                elf = true;
+            } else if (args[i].equals("--cache")) {
+                useCache = true;
+            } else if (args[i].equals("--profile")) {
+                profile = true;
             }
         }
 
         String bfFile = args[0];
-        String bfCode = "";
-        try {
-            bfCode = new String(Files.readAllBytes(Paths.get(bfFile)));
-        } catch (IOException e) {
-            System.err.println("Error reading the Brainfuck file: " + e.getMessage());
-            return;
-        }
-
-        String assemblyCode = bfToX86_64(bfCode, optSl, optScan);
-
-        String asmFile = "program.s";
-        try (FileWriter fileWriter = new FileWriter(asmFile)) {
-            fileWriter.write(assemblyCode);
-        } catch (IOException e) {
-            System.err.println("Error writing the assembly file: " + e.getMessage());
-            return;
+        String outputFile = elf ? "program.o" : "program.s";
+        if (useCache) {
+            // The key covers all of the cleaned code, and the output is kept to be stored. A profile
+            // gives offsets into the source, so with --profile the key covers the comments too.
+            String bfCode = "";
+            try {
+                bfCode = profile ? Files.readString(Paths.get(bfFile), StandardCharsets.ISO_8859_1) : BFSource.readAll(Paths.get(bfFile));
+            } catch (IOException e) {
+                System.err.println("Error reading the Brainfuck file: " + e.getMessage());
+                return;
+            }
+            BFCache cache = BFCache.open();
+            String key = BFCache.key("BFCompiler", bfCode, optSl, optScan, avx2, elf, profile);
+            byte[] output = cache.load(key);
+            if (output != null) {
+                System.out.println("Found in the compilation cache");
+            } else {
+                output = elf ? bfToElf(bfCode, optSl, optScan, avx2, profile) : bfToX86_64(bfCode, optSl, optScan, avx2, profile).getBytes();
+                cache.store(key, output);
+            }
+            try {
+                Files.write(Paths.get(outputFile), output);
+            } catch (IOException e) {
+                System.err.println("Error writing " + outputFile + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            // The source is read and compiled a segment at a time, and the assembly is written as it is
+            // generated
+            InputStream in;
+            try {
+                in = Files.newInputStream(Paths.get(bfFile));
+            } catch (IOException e) {
+                System.err.println("Error reading the Brainfuck file: " + e.getMessage());
+                return;
+            }
+            try (BFSource source = new BFSource(in, profile)) {
+                if (elf) {
+                    // Machine code straight into an object file, skipping the text and the assembler
+                    Files.write(Paths.get(outputFile), bfToElf(source, optSl, optScan, avx2));
+                } else {
+                    try (Writer out = Files.newBufferedWriter(Paths.get(outputFile))) {
+                        bfToX86_64(source, out, optSl, optScan, avx2);
+                    } catch (RuntimeException e) {
+                        // No half-written assembly for the build to pick up
+                        Files.deleteIfExists(Paths.get(outputFile));
+                        throw e;
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                System.err.println(e.getMessage());
+                return;
+            } catch (IOException e) {
+                System.err.println("Error writing " + outputFile + ": " + e.getMessage());
+                return;
+            }
         }
 
-        System.out.println("Assembly code has been written to " + asmFile);
+        System.out.println((elf ? "Object" : "Assembly") + " code has been written to " + outputFile);
     }
 
     public static String cleanCode(String code) {
         StringBuilder sb = new StringBuilder();
-        for (char c : code.toCharArray()) {
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
             if (c == '.' || c == ',' || c == '[' || c == ']' || c == '<' || c == '>' || c == '+' || c == '-') {
                 sb.append(c);
             }
@@ -56,379 +118,51 @@ public class BFCompiler {
         return sb.toString();
     }
 
-    public static boolean isInnermost(String code, int loopStart, int loopEnd) {
-        String loopBody = code.substring(loopStart + 1, loopEnd);
-        return !loopBody.contains("[");
-    }
-
-    public static boolean isSimple(String code, int loopStart, int loopEnd) {
-        String loopBody = code.substring(loopStart + 1, loopEnd);
-        int inBodyPointer = 0;
-        int startCellChange = 0;
-
-        for (char command : loopBody.toCharArray()) {
-            if (command == '[' || command == ']') {
-                throw new RuntimeException("You have called is_simple on a loop that is not innermost!");
-            } else if (command == '>') {
-                inBodyPointer++;
-            } else if (command == '<') {
-                inBodyPointer--;
-            } else if (command == '+') {
-                if (inBodyPointer == 0) {
-                    startCellChange++;
-                }
-            } else if (command == '-') {
-                if (inBodyPointer == 0) {
-                    startCellChange--;
-                }
-            } else if (command == '.' || command == ',') {
-                return false;
-            } else {
-                return false;
-            }
-        }
-
-        return inBodyPointer == 0 && (startCellChange == 1 || startCellChange == -1);
-    }
-
-    public static class ScanLoopResult {
-        public boolean isOptimizable;
-        public int netDirection;
-
-        public ScanLoopResult(boolean isOptimizable, int netDirection) {
-            this.isOptimizable = isOptimizable;
-            this.netDirection = netDirection;
-        }
-    }
-
-    public static ScanLoopResult isOptimizableScanLoop(String bfCode, int loopStart, int loopEnd) {
-        String loopBody = bfCode.substring(loopStart + 1, loopEnd);
-        int pointer = 0;
-
-        for (char c : loopBody.toCharArray()) {
-            if (c == '>') {
-                pointer++;
-            } else if (c == '<') {
-                pointer--;
-            } else {
-                return new ScanLoopResult(false, 0);
-            }
-        }
-
-        if (pointer == 0) {
-            return new ScanLoopResult(false, 0);
-        }
-
-        int absPointer = Math.abs(pointer);
-        if ((absPointer & (absPointer - 1)) != 0) {
-            return new ScanLoopResult(false, 0);
-        }
-
-        int netDirection = pointer > 0 ? 1 : -1;
-        return new ScanLoopResult(true, netDirection);
+    public static String bfToX86_64(String srcBfCode, boolean optSl, boolean optScan) {
+        return bfToX86_64(srcBfCode, optSl, optScan, false);
     }
 
-    public static List<int[]> findLoops(String code) {
-        Stack<Integer> loopStack = new Stack<>();
-        List<int[]> loops = new ArrayList<>();
-
-        for (int i = 0; i < code.length(); i++) {
-            char c = code.charAt(i);
-            if (c == '[') {
-                loopStack.push(i);
-            } else if (c == ']') {
-                if (!loopStack.isEmpty()) {
-                    int start = loopStack.pop();
-                    loops.add(new int[]{start, i});
-                }
-            }
-        }
-        return loops;
+    public static String bfToX86_64(String srcBfCode, boolean optSl, boolean optScan, boolean avx2) {
+        return bfToX86_64(srcBfCode, optSl, optScan, avx2, false);
     }
 
-    public static String optimizeScanLoops(String bfCode) {
-        String optimizedCode = bfCode;
-        List<int[]> loops = findLoops(optimizedCode);
-        while (true) {
-            boolean optimizedAny = false;
-            for (int[] loop : loops) {
-                int loopStart = loop[0];
-                int loopEnd = loop[1];
-                ScanLoopResult result = isOptimizableScanLoop(optimizedCode, loopStart, loopEnd);
-                if (result.isOptimizable) {
-                    optimizedAny = true;
-                    if (result.netDirection == 1) {
-                        optimizedCode = optimizedCode.substring(0, loopStart) + 'R' + optimizedCode.substring(loopEnd + 1);
-                    } else {
-                        optimizedCode = optimizedCode.substring(0, loopStart) + 'L' + optimizedCode.substring(loopEnd + 1);
-                    }
-                    break;
-                }
-            }
-            if (!optimizedAny) {
-                break;
-            }
-            loops = findLoops(optimizedCode);
-        }
-        return optimizedCode;
+    // With profile the program counts the runs of its loops; the profile gives offsets into srcBfCode
+    public static String bfToX86_64(String srcBfCode, boolean optSl, boolean optScan, boolean avx2, boolean profile) {
+        BFCodeGen codeGen = new BFCodeGen(avx2);
+        compile(new BFSource(srcBfCode, profile), codeGen, optSl, optScan);
+        return codeGen.toString();
     }
 
-    public static class OptimizeSimpleLoopsResult {
-        public String optimizedCode;
-        public Map<Integer, Map<Integer, Integer>> pointerEffectsMap;
-
-        public OptimizeSimpleLoopsResult(String optimizedCode, Map<Integer, Map<Integer, Integer>> pointerEffectsMap) {
-            this.optimizedCode = optimizedCode;
-            this.pointerEffectsMap = pointerEffectsMap;
-        }
+    // The same assembly written to out as it is generated, profiled when source records locations
+    public static void bfToX86_64(BFSource source, Writer out, boolean optSl, boolean optScan, boolean avx2) {
+        BFCodeGen codeGen = new BFCodeGen(avx2, out);
+        compile(source, codeGen, optSl, optScan);
+        codeGen.flush();
     }
 
-    public static OptimizeSimpleLoopsResult optimizeSimpleLoops(String bfCode) {
-        String optimizedCode = bfCode;
-        List<int[]> loops = findLoops(optimizedCode);
-        Map<Integer, Map<Integer, Integer>> pointerEffectsMap = new HashMap<>();
-
-        while (true) {
-            boolean optimizedAny = false;
-            for (int[] loop : loops) {
-                int loopStart = loop[0];
-                int loopEnd = loop[1];
-                if (isInnermost(optimizedCode, loopStart, loopEnd)) {
-                    if (isSimple(optimizedCode, loopStart, loopEnd)) {
-                        optimizedAny = true;
-                        OptimizeLoopResult optResult = optimizeLoop(optimizedCode, loopStart, loopEnd);
-                        optimizedCode = optResult.optimizedCode;
-                        Map<Integer, Integer> pointerEffects = optResult.pointerEffects;
-                        pointerEffectsMap.put(loopStart, pointerEffects);
-                        break;
-                    }
-                }
-            }
-            if (!optimizedAny) {
-                break;
-            }
-            loops = findLoops(optimizedCode);
-        }
-
-        return new OptimizeSimpleLoopsResult(optimizedCode, pointerEffectsMap);
+    public static byte[] bfToElf(String srcBfCode, boolean optSl, boolean optScan, boolean avx2) {
+        return bfToElf(srcBfCode, optSl, optScan, avx2, false);
     }
 
-    public static class OptimizeLoopResult {
-        public String optimizedCode;
-        public Map<Integer, Integer> pointerEffects;
-
-        public OptimizeLoopResult(String optimizedCode, Map<Integer, Integer> pointerEffects) {
-            this.optimizedCode = optimizedCode;
-            this.pointerEffects = pointerEffects;
-        }
+    public static byte[] bfToElf(String srcBfCode, boolean optSl, boolean optScan, boolean avx2, boolean profile) {
+        return bfToElf(new BFSource(srcBfCode, profile), optSl, optScan, avx2);
     }
 
-    public static OptimizeLoopResult optimizeLoop(String bfCode, int loopStart, int loopEnd) {
-        String loopBody = bfCode.substring(loopStart + 1, loopEnd);
-
-        int pointerPosition = 0;
-        Map<Integer, Integer> pointerEffects = new HashMap<>();
-
-        for (char command : loopBody.toCharArray()) {
-            if (command == '>') {
-                pointerPosition++;
-            } else if (command == '<') {
-                pointerPosition--;
-            } else if (command == '+') {
-                pointerEffects.put(pointerPosition, pointerEffects.getOrDefault(pointerPosition, 0) + 1);
-            } else if (command == '-') {
-                pointerEffects.put(pointerPosition, pointerEffects.getOrDefault(pointerPosition, 0) - 1);
-            }
-        }
-
-        String optimizedCode = bfCode.substring(0, loopStart) + 'G' + bfCode.substring(loopEnd + 1);
-
-        return new OptimizeLoopResult(optimizedCode, pointerEffects);
+    // The object file holds all of the machine code, which the jumps are sized over, but the IR is
+    // still built a segment at a time
+    public static byte[] bfToElf(BFSource source, boolean optSl, boolean optScan, boolean avx2) {
+        BFCodeGen codeGen = new BFCodeGen(avx2, true);
+        compile(source, codeGen, optSl, optScan);
+        return codeGen.toElf();
     }
 
-    public static String bfToX86_64(String srcBfCode, boolean optSl, boolean optScan) {
-        int tapeSize = 50000;
-        String bfCode = cleanCode(srcBfCode);
-        Map<Integer, Map<Integer, Integer>> pointerEffectsMap = new HashMap<>();
-
-        if (optScan) {
-            bfCode = optimizeScanLoops(bfCode);
+    private static void compile(BFSource source, BFCodeGen codeGen, boolean optSl, boolean optScan) {
+        if (source.locations() != null) {
+            // Filled in as the source is read; the sites are located only at the end
+            codeGen.enableProfiling(source.locations());
         }
-
-        if (optSl) {
-            OptimizeSimpleLoopsResult result = optimizeSimpleLoops(bfCode);
-            bfCode = result.optimizedCode;
-            pointerEffectsMap = result.pointerEffectsMap;
-        }
-
-        StringBuilder assemblyCode = new StringBuilder();
-        assemblyCode.append("""
-        .global bf_main
-        .section .text
-    bf_main:
-        # The tape pointer is passed in %rdi
-        mov %rdi, %r15            # Save the tape pointer in a register (using %r15)
-        lea 50000(%r15), %r14     # Store the end of the tape in %r14 (tape_end)
-        mov %r15, %r13            # Store the start of the tape in %r13 (tape_start)
-    main_loop:
-    """);
-
-        int labelId = 0;
-        Stack<String[]> loopStack = new Stack<>();
-        int loopId = 0;
-
-        for (int i = 0; i < bfCode.length(); i++) {
-            char c = bfCode.charAt(i);
-            switch (c) {
-                case '>':
-                    assemblyCode.append("    inc %r15\n");
-                    break;
-                case '<':
-                    assemblyCode.append("    dec %r15\n");
-                    break;
-                case '+':
-                    assemblyCode.append("    incb (%r15)\n");
-                    break;
-                case '-':
-                    assemblyCode.append("    decb (%r15)\n");
-                    break;
-                case '.':
-                    assemblyCode.append("    movzbl (%r15), %edi\n");
-                    assemblyCode.append("    call putchar\n");
-                    break;
-                case ',':
-                    assemblyCode.append("    call getchar\n");
-                    assemblyCode.append("    movb %al, (%r15)\n");
-                    break;
-                case '[':
-                    String loopStart = "loop_start_" + labelId;
-                    String loopEnd = "loop_end_" + labelId;
-                    labelId++;
-                    loopStack.push(new String[]{loopStart, loopEnd});
-
-                    assemblyCode.append(loopStart + ":\n");
-                    assemblyCode.append("    movzbl (%r15), %eax\n");
-                    assemblyCode.append("    test %eax, %eax\n");
-                    assemblyCode.append("    je " + loopEnd + "\n");
-                    break;
-                case ']':
-                    String[] loopLabels = loopStack.pop();
-                    String loopStartLabel = loopLabels[0];
-                    String loopEndLabel = loopLabels[1];
-                    assemblyCode.append("    jmp " + loopStartLabel + "\n");
-                    assemblyCode.append(loopEndLabel + ":\n");
-                    break;
-                case 'G':
-                    if (pointerEffectsMap.containsKey(i)) {
-                        Map<Integer, Integer> pointerEffects = pointerEffectsMap.get(i);
-
-                        assemblyCode.append("    movzbl (%r15), %eax\n");
-
-                        for (Map.Entry<Integer, Integer> entry : pointerEffects.entrySet()) {
-                            int pos = entry.getKey();
-                            int effect = entry.getValue();
-                            if (pos == 0) continue;
-                            if (effect == 0) continue;
-
-                            assemblyCode.append("    movzbl " + pos + "(%r15), %ebx\n");
-
-                            if (effect == 1) {
-                                assemblyCode.append("    add %eax, %ebx\n");
-                            } else if (effect == -1) {
-                                assemblyCode.append("    sub %eax, %ebx\n");
-                            } else {
-                                assemblyCode.append("    mov $" + Math.abs(effect) + ", %ecx\n");
-                                assemblyCode.append("    imul %eax, %ecx\n");
-                                if (effect > 0) {
-                                    assemblyCode.append("    add %ecx, %ebx\n");
-                                } else {
-                                    assemblyCode.append("    sub %ecx, %ebx\n");
-                                }
-                            }
-                            assemblyCode.append("    movb %bl, " + pos + "(%r15)\n");
-                        }
-
-                        assemblyCode.append("    movb $0, (%r15)\n");
-                    }
-                    break;
-                case 'R':
-                    assemblyCode.append(String.format("""
-                    test $15, %%r15
-                    jne scan_right_fallback_%d
-
-                    scan_right_loop_%d:
-                        cmp %%r14, %%r15            # Boundary check: tape_end
-                        jge end_program            # If pointer is at the end, exit
-                        movdqa (%%r15), %%xmm0        # Load 16 bytes into xmm0
-                        pxor   %%xmm1, %%xmm1
-                        pcmpeqb %%xmm1, %%xmm0        # Compare for zeros
-                        pmovmskb %%xmm0, %%eax        # Move mask of comparison results to %%eax
-                        test %%eax, %%eax             # Test if any zero was found
-                        jne scan_right_found_%d
-                        add $16, %%r15               # Move 16 bytes to the right
-                        jmp scan_right_loop_%d
-
-                    scan_right_found_%d:
-                        tzcnt %%eax, %%ecx            # Find the index of the first zero
-                        add %%rcx, %%r15              # Move pointer to the position of the first zero
-                        jmp scan_right_exit_%d
-
-                    scan_right_fallback_%d:
-                        cmp %%r14, %%r15
-                        jge end_program 
-                        movzbl (%%r15), %%eax
-                        test %%eax, %%eax
-                        je scan_right_exit_%d
-                        inc %%r15
-                        jmp scan_right_fallback_%d
-
-                    scan_right_exit_%d:
-                    """, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId));
-                    loopId++;
-                    break;
-                case 'L':
-                    assemblyCode.append(String.format("""
-                    test $15, %%r15
-                    jne scan_left_fallback_%d
-
-                    scan_left_loop_%d:
-                        cmp %%r15, %%r13            # Boundary check: tape_end
-                        jge end_program            # If pointer is at the end, exit
-                        movdqa -16(%%r15), %%xmm0     # Load 16 bytes into xmm0 (move left)
-                        pxor   %%xmm1, %%xmm1
-                        pcmpeqb %%xmm1, %%xmm0        # Compare for zeros
-                        pmovmskb %%xmm0, %%eax        # Move mask of comparison results to %%eax
-                        test %%eax, %%eax             # Test if any zero was found
-                        jne scan_left_found_%d
-                        sub $16, %%r15               # Move 16 bytes to the left
-                        jmp scan_left_loop_%d
-
-                    scan_left_found_%d:
-                        tzcnt %%eax, %%ecx            # Find the index of the first zero
-                        sub %%rcx, %%r15              # Move pointer to the position of the first zero
-                        jmp scan_left_exit_%d
-
-                    scan_left_fallback_%d:
-                        cmp %%r15, %%r13
-                        jge end_program 
-                        movzbl (%%r15), %%eax
-                        test %%eax, %%eax
-                        je scan_left_exit_%d
-                        dec %%r15
-                        jmp scan_left_fallback_%d
-
-                    scan_left_exit_%d:
-                    """, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId));
-                    loopId++;
-                    break;
-            }
-        }
-
-        assemblyCode.append("""
-    end_program:
-        ret                      # Return from the Brainfuck main function
-    """);
-
-        return assemblyCode.toString();
+        codeGen.emitPrologue();
+        codeGen.emitProgram(source, BFPasses.forFlags(optSl, optScan), ForkJoinPool.commonPool());
+        codeGen.emitEpilogue();
     }
 }
@@ -0,0 +1,693 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class BFCompilerJVM {
+
+    public static final int TAPE_SIZE = 50000;
+
+    // HotSpot never JITs methods over 8000 bytes of bytecode (DontCompileHugeMethods), and big
+    // methods with deep loop nests spend most of a short run in C2. Generated code is outlined into
+    // helper methods of about 1 KB, which compile quickly and tier up independently.
+    public static final int METHOD_SIZE_LIMIT = 1000;
+
+    public static void main(String[] args) {
+        boolean optSl = false;
+        boolean optScan = false;
+        if (!(args.length == 1 || args.length == 2)) {
+            System.out.println("Usage: java BFCompilerJVM <brainfuck_file.bf> [[--o-simpleloops] or [--o-scanloops] or -O]");
+            return;
+        }
+        if (args.length == 2) {
+            if (args[1].equals("--o-simpleloops")) {
+                optSl = true;
+            } else if (args[1].equals("--o-scanloops")) {
+                optScan = true;
+            } else if (args[1].equals("-O")) {
+                optSl = true;
+                optScan = true;
+            }
+        }
+
+        String bfFile = args[0];
+        String bfCode = "";
+        try {
+            bfCode = new String(Files.readAllBytes(Paths.get(bfFile)));
+        } catch (IOException e) {
+            System.err.println("Error reading the Brainfuck file: " + e.getMessage());
+            return;
+        }
+
+        MethodHandle program = compile(bfCode, optSl, optScan);
+        run(program, System.in, System.out);
+    }
+
+    // Cleans and optimizes the program exactly like BFCompiler.bfToX86_64 and loads the result as a
+    // hidden class. The returned handle has the type (byte[] tape, int pointer, Runtime io)int.
+    public static MethodHandle compile(String srcBfCode, boolean optSl, boolean optScan) {
+        String bfCode = BFCompiler.cleanCode(srcBfCode);
+        List<BFIR.Node> program = BFIR.parse(bfCode);
+        program = BFPasses.forFlags(optSl, optScan).run(program);
+
+        byte[] classBytes = generateClassBytes(program);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            return lookup.findStatic(lookup.lookupClass(), "run", MethodType.methodType(int.class, byte[].class, int.class, Runtime.class));
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new RuntimeException("Cannot load the generated class: " + e.getMessage(), e);
+        }
+    }
+
+    public static void run(MethodHandle program, InputStream in, OutputStream out) {
+        Runtime io = new Runtime(in, out);
+        byte[] tape = new byte[TAPE_SIZE];
+        try {
+            int pointer = (int) program.invokeExact(tape, 0, io);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            io.flush();
+            throw new RuntimeException("Your BF program moved the pointer off the tape: " + e.getMessage());
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        io.flush();
+    }
+
+    // The I/O object handed to generated code. Output is buffered and written in blocks;
+    // read() returns -1 at EOF, which the generated code stores as 255 like the native runtime
+    public static class Runtime {
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] outBuf = new byte[1 << 13];
+        private int outLen = 0;
+        private final byte[] inBuf = new byte[1 << 13];
+        private int inPos = 0;
+        private int inLen = 0;
+
+        public Runtime(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        public void write(int value) {
+            if (outLen == outBuf.length) {
+                flush();
+            }
+            outBuf[outLen++] = (byte) value;
+        }
+
+        public int read() {
+            if (inPos == inLen) {
+                flush();
+                try {
+                    inLen = in.read(inBuf);
+                } catch (IOException e) {
+                    throw new RuntimeException("Input value caused: " + e.getMessage());
+                }
+                inPos = 0;
+                if (inLen <= 0) {
+                    inLen = 0;
+                    return -1;
+                }
+            }
+            return inBuf[inPos++] & 0xFF;
+        }
+
+        public void flush() {
+            try {
+                out.write(outBuf, 0, outLen);
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing the program output: " + e.getMessage());
+            }
+            outLen = 0;
+        }
+    }
+
+    // Bytecode opcodes used by the generator
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD_1 = 0x1b;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int BALOAD = 0x33;
+    private static final int ISTORE_1 = 0x3c;
+    private static final int ISTORE_3 = 0x3e;
+    private static final int BASTORE = 0x54;
+    private static final int DUP2 = 0x5c;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int INEG = 0x74;
+    private static final int IINC = 0x84;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int WIDE = 0xc4;
+
+    // Every generated method has the locals (byte[] tape, int pointer, Runtime io, int count)
+    // and returns the final pointer
+    private static final String METHOD_DESCRIPTOR = "([BILBFCompilerJVM$Runtime;)I";
+
+    public static byte[] generateClassBytes(List<BFIR.Node> program) {
+        ClassBuilder classBuilder = new ClassBuilder("BFProgram");
+        List<Code> pieces = generatePieces(classBuilder, program);
+        classBuilder.addMethod("run", true, pack(classBuilder, pieces));
+        return classBuilder.toByteArray();
+    }
+
+    // Generates one code piece per node, folding runs of adds to the same cell and of moves
+    private static List<Code> generatePieces(ClassBuilder cb, List<BFIR.Node> nodes) {
+        List<Code> pieces = new ArrayList<>();
+        int i = 0;
+        while (i < nodes.size()) {
+            BFIR.Node node = nodes.get(i);
+            Code code = new Code();
+            if (node instanceof BFIR.Add) {
+                BFIR.Add add = (BFIR.Add) node;
+                int delta = 0;
+                while (i < nodes.size() && nodes.get(i) instanceof BFIR.Add && ((BFIR.Add) nodes.get(i)).offset == add.offset) {
+                    delta += ((BFIR.Add) nodes.get(i)).delta;
+                    i++;
+                }
+                delta = (byte) delta;
+                if (delta != 0) {
+                    addToCell(cb, code, add.offset, delta);
+                    pieces.add(code);
+                }
+                continue;
+            } else if (node instanceof BFIR.Move) {
+                int delta = 0;
+                while (i < nodes.size() && nodes.get(i) instanceof BFIR.Move) {
+                    delta += ((BFIR.Move) nodes.get(i)).delta;
+                    i++;
+                }
+                if (delta != 0) {
+                    movePointer(cb, code, delta);
+                    pieces.add(code);
+                }
+                continue;
+            } else if (node instanceof BFIR.Output) {
+                code.op(ALOAD_2);
+                loadCell(cb, code, ((BFIR.Output) node).offset);
+                code.op(INVOKEVIRTUAL);
+                code.u2(cb.methodRef("BFCompilerJVM$Runtime", "write", "(I)V"));
+            } else if (node instanceof BFIR.ConstantOutput) {
+                BFIR.ConstantOutput output = (BFIR.ConstantOutput) node;
+                for (int k = 0; k < output.length; k++) {
+                    code.op(ALOAD_2);
+                    pushInt(cb, code, output.values[k] & 0xFF);
+                    code.op(INVOKEVIRTUAL);
+                    code.u2(cb.methodRef("BFCompilerJVM$Runtime", "write", "(I)V"));
+                }
+            } else if (node instanceof BFIR.Input) {
+                code.op(ALOAD_0);
+                code.op(ILOAD_1);
+                int offset = ((BFIR.Input) node).offset;
+                if (offset != 0) {
+                    pushInt(cb, code, offset);
+                    code.op(IADD);
+                }
+                code.op(ALOAD_2);
+                code.op(INVOKEVIRTUAL);
+                code.u2(cb.methodRef("BFCompilerJVM$Runtime", "read", "()I"));
+                code.op(BASTORE);
+            } else if (node instanceof BFIR.Loop) {
+                List<Code> body = generatePieces(cb, ((BFIR.Loop) node).body);
+                // while (tape[p] != 0) { body }, with the test rotated to the bottom
+                loadCell(code);
+                int skipBranch = code.branch(IFEQ);
+                int bodyStart = code.mark();
+                code.append(pack(cb, body));
+                loadCell(code);
+                code.branchTo(IFNE, bodyStart);
+                code.patch(skipBranch, code.mark());
+            } else if (node instanceof BFIR.MultiplyLoop) {
+                generateMultiplyLoop(cb, code, (BFIR.MultiplyLoop) node);
+            } else if (node instanceof BFIR.ScanLoop) {
+                int head = code.mark();
+                loadCell(code);
+                int exitBranch = code.branch(IFEQ);
+                movePointer(cb, code, ((BFIR.ScanLoop) node).stride);
+                code.branchTo(GOTO, head);
+                code.patch(exitBranch, code.mark());
+            } else if (node instanceof BFIR.Fill) {
+                // Arrays.fill(tape, p + offset, p + offset + length, value)
+                BFIR.Fill fill = (BFIR.Fill) node;
+                code.op(ALOAD_0);
+                pushIndex(cb, code, fill.offset);
+                pushIndex(cb, code, fill.offset + fill.length);
+                pushInt(cb, code, (byte) fill.value);
+                code.op(INVOKESTATIC);
+                code.u2(cb.methodRef("java/util/Arrays", "fill", "([BIIB)V"));
+            } else if (node instanceof BFIR.ShiftRange) {
+                generateShiftRange(cb, code, (BFIR.ShiftRange) node);
+            }
+            if (code.length > 0) {
+                pieces.add(code);
+            }
+            i++;
+        }
+        return pieces;
+    }
+
+    private static void generateMultiplyLoop(ClassBuilder cb, Code code, BFIR.MultiplyLoop loop) {
+        // count = tape[p] * tripCountFactor; only its low byte matters, like every cell update
+        loadCell(code);
+        code.op(ISTORE_3);
+        code.op(ILOAD_3);
+        int skipBranch = code.branch(IFEQ);
+        int factor = loop.tripCountFactor();
+        if (factor != 1) {
+            code.op(ILOAD_3);
+            if (factor == -1) {
+                code.op(INEG);
+            } else {
+                pushInt(cb, code, factor);
+                code.op(IMUL);
+            }
+            code.op(ISTORE_3);
+        }
+        for (Map.Entry<Integer, Integer> entry : loop.pointerEffects.entrySet()) {
+            int pos = entry.getKey();
+            int effect = (byte) (int) entry.getValue();
+            if (effect == 0) continue;
+
+            code.op(ALOAD_0);
+            code.op(ILOAD_1);
+            pushInt(cb, code, pos);
+            code.op(IADD);
+            code.op(DUP2);
+            code.op(BALOAD);
+            code.op(ILOAD_3);
+            if (effect == -1) {
+                code.op(ISUB);
+            } else {
+                if (effect != 1) {
+                    pushInt(cb, code, effect);
+                    code.op(IMUL);
+                }
+                code.op(IADD);
+            }
+            code.op(BASTORE);
+        }
+        code.op(ALOAD_0);
+        code.op(ILOAD_1);
+        code.op(ICONST_0);
+        code.op(BASTORE);
+        code.patch(skipBranch, code.mark());
+    }
+
+    private static void generateShiftRange(ClassBuilder cb, Code code, BFIR.ShiftRange shift) {
+        int first = shift.offset;
+        int last = shift.offset + shift.length - 1;
+        int lead = shift.shift < 0 ? first : last;
+        // tape[p + lead + shift] += tape[p + lead]
+        code.op(ALOAD_0);
+        pushIndex(cb, code, lead + shift.shift);
+        code.op(DUP2);
+        code.op(BALOAD);
+        loadCell(cb, code, lead);
+        code.op(IADD);
+        code.op(BASTORE);
+        // System.arraycopy handles the overlap like memmove
+        int from = shift.shift < 0 ? first + 1 : first;
+        code.op(ALOAD_0);
+        pushIndex(cb, code, from);
+        code.op(ALOAD_0);
+        pushIndex(cb, code, from + shift.shift);
+        pushInt(cb, code, shift.length - 1);
+        code.op(INVOKESTATIC);
+        code.u2(cb.methodRef("java/lang/System", "arraycopy", "(Ljava/lang/Object;ILjava/lang/Object;II)V"));
+        code.op(ALOAD_0);
+        pushIndex(cb, code, shift.shift < 0 ? last : first);
+        code.op(ICONST_0);
+        code.op(BASTORE);
+    }
+
+    // Pushes p + offset
+    private static void pushIndex(ClassBuilder cb, Code code, int offset) {
+        code.op(ILOAD_1);
+        if (offset != 0) {
+            pushInt(cb, code, offset);
+            code.op(IADD);
+        }
+    }
+
+    private static void loadCell(ClassBuilder cb, Code code, int offset) {
+        code.op(ALOAD_0);
+        code.op(ILOAD_1);
+        if (offset != 0) {
+            pushInt(cb, code, offset);
+            code.op(IADD);
+        }
+        code.op(BALOAD);
+    }
+
+    private static void loadCell(Code code) {
+        code.op(ALOAD_0);
+        code.op(ILOAD_1);
+        code.op(BALOAD);
+    }
+
+    private static void addToCell(ClassBuilder cb, Code code, int offset, int delta) {
+        code.op(ALOAD_0);
+        code.op(ILOAD_1);
+        if (offset != 0) {
+            pushInt(cb, code, offset);
+            code.op(IADD);
+        }
+        code.op(DUP2);
+        code.op(BALOAD);
+        pushInt(cb, code, delta);
+        code.op(IADD);
+        code.op(BASTORE);
+    }
+
+    private static void movePointer(ClassBuilder cb, Code code, int delta) {
+        if (delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE) {
+            code.op(IINC);
+            code.u1(1);
+            code.u1(delta);
+        } else if (delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE) {
+            code.op(WIDE);
+            code.op(IINC);
+            code.u2(1);
+            code.u2(delta);
+        } else {
+            code.op(ILOAD_1);
+            pushInt(cb, code, delta);
+            code.op(IADD);
+            code.op(ISTORE_1);
+        }
+    }
+
+    private static void pushInt(ClassBuilder cb, Code code, int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.op(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op(SIPUSH);
+            code.u2(value);
+        } else {
+            code.op(LDC_W);
+            code.u2(cb.intConstant(value));
+        }
+    }
+
+    // Concatenates the pieces, outlining runs of them into helper methods whenever the result
+    // would not fit in a single JIT-compilable method
+    private static Code pack(ClassBuilder cb, List<Code> pieces) {
+        int total = 0;
+        for (Code piece : pieces) {
+            total += piece.length;
+        }
+        if (total <= METHOD_SIZE_LIMIT) {
+            Code result = new Code();
+            for (Code piece : pieces) {
+                result.append(piece);
+            }
+            return result;
+        }
+        List<Code> calls = new ArrayList<>();
+        Code current = new Code();
+        for (Code piece : pieces) {
+            if (current.length > 0 && current.length + piece.length > METHOD_SIZE_LIMIT) {
+                calls.add(outline(cb, current));
+                current = new Code();
+            }
+            current.append(piece);
+        }
+        if (current.length > 0) {
+            calls.add(outline(cb, current));
+        }
+        return pack(cb, calls);
+    }
+
+    private static Code outline(ClassBuilder cb, Code body) {
+        String name = cb.addMethod("m" + cb.methodCount(), false, body);
+        Code call = new Code();
+        call.op(ALOAD_0);
+        call.op(ILOAD_1);
+        call.op(ALOAD_2);
+        call.op(INVOKESTATIC);
+        call.u2(cb.methodRef(cb.className, name, METHOD_DESCRIPTOR));
+        call.op(ISTORE_1);
+        return call;
+    }
+
+    // A relocatable chunk of bytecode. Branch offsets are relative, so chunks can be appended to
+    // each other as long as the branch targets (needed for the StackMapTable) move along.
+    private static class Code {
+        byte[] bytes = new byte[16];
+        int length = 0;
+        List<Integer> branchTargets = new ArrayList<>();
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        int mark() {
+            branchTargets.add(length);
+            return length;
+        }
+
+        // Emits a forward branch whose target is patched in later
+        int branch(int opcode) {
+            int at = length;
+            op(opcode);
+            u2(0);
+            return at;
+        }
+
+        void branchTo(int opcode, int target) {
+            int at = length;
+            op(opcode);
+            u2(target - at);
+        }
+
+        void patch(int at, int target) {
+            int offset = target - at;
+            bytes[at + 1] = (byte) (offset >> 8);
+            bytes[at + 2] = (byte) offset;
+        }
+
+        void append(Code other) {
+            for (int target : other.branchTargets) {
+                branchTargets.add(length + target);
+            }
+            for (int k = 0; k < other.length; k++) {
+                u1(other.bytes[k]);
+            }
+        }
+    }
+
+    // Minimal class file writer: one constant pool, static methods, StackMapTable frames
+    private static class ClassBuilder {
+        final String className;
+        private final ByteBuf constantPool = new ByteBuf();
+        private int constantCount = 1;
+        private final Map<String, Integer> constants = new HashMap<>();
+        private final ByteBuf methods = new ByteBuf();
+        private int methodCount = 0;
+        private final int thisClass;
+        private final int superClass;
+
+        ClassBuilder(String className) {
+            this.className = className;
+            this.thisClass = classConstant(className);
+            this.superClass = classConstant("java/lang/Object");
+        }
+
+        int methodCount() {
+            return methodCount;
+        }
+
+        int utf8(String value) {
+            Integer index = constants.get("U" + value);
+            if (index == null) {
+                constantPool.u1(1);
+                byte[] data = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+                constantPool.u2(data.length);
+                constantPool.bytes(data, data.length);
+                index = newConstant("U" + value);
+            }
+            return index;
+        }
+
+        int intConstant(int value) {
+            Integer index = constants.get("I" + value);
+            if (index == null) {
+                constantPool.u1(3);
+                constantPool.u4(value);
+                index = newConstant("I" + value);
+            }
+            return index;
+        }
+
+        int classConstant(String name) {
+            Integer index = constants.get("C" + name);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                constantPool.u1(7);
+                constantPool.u2(nameIndex);
+                index = newConstant("C" + name);
+            }
+            return index;
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = constants.get(key);
+            if (index == null) {
+                int ownerIndex = classConstant(owner);
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                constantPool.u1(12);
+                constantPool.u2(nameIndex);
+                constantPool.u2(descriptorIndex);
+                int nameAndType = newConstant("N" + name + descriptor);
+                constantPool.u1(10);
+                constantPool.u2(ownerIndex);
+                constantPool.u2(nameAndType);
+                index = newConstant(key);
+            }
+            return index;
+        }
+
+        private int newConstant(String key) {
+            if (constantCount >= 0xFFFF) {
+                throw new RuntimeException("BF program is too large for a single generated class.");
+            }
+            constants.put(key, constantCount);
+            return constantCount++;
+        }
+
+        String addMethod(String name, boolean isPublic, Code body) {
+            // Prologue: count = 0, so every branch target sees the same four locals
+            Code code = new Code();
+            code.op(ICONST_0);
+            code.op(ISTORE_3);
+            code.append(body);
+            code.op(ILOAD_1);
+            code.op(IRETURN);
+
+            ByteBuf frames = new ByteBuf();
+            TreeSet<Integer> targets = new TreeSet<>(code.branchTargets);
+            int previous = -1;
+            for (int target : targets) {
+                int delta = previous < 0 ? target : target - previous - 1;
+                if (previous < 0) {
+                    frames.u1(252);  // append_frame adding the int count local
+                    frames.u2(delta);
+                    frames.u1(1);
+                } else if (delta < 64) {
+                    frames.u1(delta);  // same_frame
+                } else {
+                    frames.u1(251);  // same_frame_extended
+                    frames.u2(delta);
+                }
+                previous = target;
+            }
+
+            methods.u2(isPublic ? 0x0009 : 0x000A);
+            methods.u2(utf8(name));
+            methods.u2(utf8(METHOD_DESCRIPTOR));
+            methods.u2(1);
+            methods.u2(utf8("Code"));
+            int stackMapSize = targets.isEmpty() ? 0 : 8 + frames.length;
+            methods.u4(12 + code.length + stackMapSize);
+            methods.u2(6);  // max_stack
+            methods.u2(4);  // max_locals
+            methods.u4(code.length);
+            methods.bytes(code.bytes, code.length);
+            methods.u2(0);
+            if (targets.isEmpty()) {
+                methods.u2(0);
+            } else {
+                methods.u2(1);
+                methods.u2(utf8("StackMapTable"));
+                methods.u4(2 + frames.length);
+                methods.u2(targets.size());
+                methods.bytes(frames.data, frames.length);
+            }
+            methodCount++;
+            return name;
+        }
+
+        byte[] toByteArray() {
+            ByteBuf out = new ByteBuf();
+            out.u4(0xCAFEBABE);
+            out.u2(0);
+            out.u2(61);  // Java 17 class file
+            out.u2(constantCount);
+            out.bytes(constantPool.data, constantPool.length);
+            out.u2(0x0030);  // ACC_FINAL | ACC_SUPER
+            out.u2(thisClass);
+            out.u2(superClass);
+            out.u2(0);
+            out.u2(0);
+            out.u2(methodCount);
+            out.bytes(methods.data, methods.length);
+            out.u2(0);
+            return Arrays.copyOf(out.data, out.length);
+        }
+    }
+
+    private static class ByteBuf {
+        byte[] data = new byte[256];
+        int length = 0;
+
+        void u1(int value) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] source, int count) {
+            if (length + count > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+            }
+            System.arraycopy(source, 0, data, length, count);
+            length += count;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+// Compiles a program with the passes and the code generator of BFCompiler and runs the machine code
+// inside the JVM, with no files, assembler, linker or child process. The code is copied into memory
+// mapped with mmap and made executable with mprotect, both called through the Foreign Function & Memory
+// API, and called through a downcall handle. bf_flush, bf_read and bf_write, the functions of
+// bf_wrapper.c the code calls, are upcall stubs into this class, and bf_out_pos and bf_out_end live on
+// a writable page behind the code. A fault in the code would take the JVM down with it, so the code
+// checks the pointer against the bounds of the tape (BFCodeGen.enableBoundsChecks) and a program that
+// leaves the tape ends with an exception.
+//
+// java.lang.foreign is a preview API in JDK 21: compile and run with --enable-preview.
+public class BFCompilerNative {
+
+    // Tape reserved for a run. The kernel only commits the pages the program touches.
+    public static final long TAPE_SIZE = 1L << 30;
+    // Output collected before it is written, as in bf_wrapper.c
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) {
+        boolean optSl = false;
+        boolean optScan = false;
+        boolean avx2 = false;
+        if (args.length < 1) {
+            System.out.println("Usage: java --enable-preview BFCompilerNative <brainfuck_file.bf> [[--o-simpleloops] or [--o-scanloops] or -O] [--avx2]");
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--o-simpleloops")) {
+                optSl = true;
+            } else if (args[i].equals("--o-scanloops")) {
+                optScan = true;
+            } else if (args[i].equals("-O")) {
+                optSl = true;
+                optScan = true;
+            } else if (args[i].equals("--avx2")) {
+                avx2 = true;
+            }
+        }
+
+        String bfFile = args[0];
+        String bfCode = "";
+        try {
+            bfCode = new String(Files.readAllBytes(Paths.get(bfFile)));
+        } catch (IOException e) {
+            System.err.println("Error reading the Brainfuck file: " + e.getMessage());
+            return;
+        }
+
+        try (NativeProgram program = compile(bfCode, optSl, optScan, avx2)) {
+            program.run(System.in, System.out);
+        } catch (RuntimeException e) {
+            // Like bf_wrapper.c for a program that leaves the tape
+            System.out.flush();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Cleans and optimizes the program exactly like BFCompiler.bfToX86_64 and loads the machine code
+    // into executable memory. The program holds that memory until it is closed.
+    public static NativeProgram compile(String srcBfCode, boolean optSl, boolean optScan, boolean avx2) {
+        String bfCode = BFCompiler.cleanCode(srcBfCode);
+        List<BFIR.Node> program = BFIR.parse(bfCode);
+        program = BFPasses.forFlags(optSl, optScan).run(program);
+
+        BFCodeGen codeGen = new BFCodeGen(avx2, true);
+        codeGen.enableBoundsChecks();
+        codeGen.emitPrologue();
+        codeGen.emitProgram(program);
+        codeGen.emitEpilogue();
+        return new NativeProgram(codeGen);
+    }
+
+    // Machine code in memory of its own: the code and its data, read-only and executable, then a page
+    // holding bf_out_pos, bf_out_end and the bounds of the tape. A program runs once at a time, since
+    // the variables are shared by its runs; separate programs run in parallel.
+    public static class NativeProgram implements AutoCloseable {
+        private final MemorySegment memory;
+        private final MemorySegment variables;
+        private final MethodHandle main;
+
+        public NativeProgram(BFCodeGen codeGen) {
+            long codeSize = pages(codeGen.imageSize());
+            memory = map(codeSize + PAGE_SIZE, PROT_READ | PROT_WRITE, 0);
+            variables = memory.asSlice(codeSize, PAGE_SIZE);
+            Map<String, Long> symbols = new HashMap<>();
+            symbols.put("bf_out_pos", variables.address());
+            symbols.put("bf_out_end", variables.address() + 8);
+            symbols.put("bf_tape_start", variables.address() + 16);
+            symbols.put("bf_tape_end", variables.address() + 24);
+            symbols.put("bf_flush", FLUSH.address());
+            symbols.put("bf_read", READ.address());
+            symbols.put("bf_write", WRITE.address());
+            byte[] image = codeGen.toImage(memory.address(), symbols);
+            MemorySegment.copy(image, 0, memory, JAVA_BYTE, 0, image.length);
+            protect(memory, codeSize, PROT_READ | PROT_EXEC);
+            main = LINKER.downcallHandle(memory, FunctionDescriptor.of(JAVA_INT, ADDRESS));
+        }
+
+        // Runs on a fresh tape of TAPE_SIZE cells
+        public void run(InputStream in, OutputStream out) {
+            MemorySegment tape = map(TAPE_SIZE, PROT_READ | PROT_WRITE, MAP_NORESERVE);
+            try {
+                run(tape, in, out);
+            } finally {
+                unmap(tape);
+            }
+        }
+
+        // Runs on the given tape, from its first cell. The vector scan loops read the aligned 32-byte
+        // blocks holding the cells they pass, so the tape must start and end on such a block. A program
+        // that moves the pointer off the tape stops there with an exception, after its output so far.
+        public synchronized void run(MemorySegment tape, InputStream in, OutputStream out) {
+            if (tape.address() % 32 != 0 || tape.byteSize() % 32 != 0 || tape.byteSize() == 0) {
+                throw new RuntimeException("The tape must start and end on a 32-byte boundary");
+            }
+            int result;
+            try (Arena arena = Arena.ofConfined()) {
+                Runtime io = new Runtime(in, out, arena.allocate(BUFFER_SIZE, 64), variables);
+                variables.set(JAVA_LONG, 0, io.buffer.address());
+                variables.set(JAVA_LONG, 8, io.buffer.address() + BUFFER_SIZE);
+                variables.set(JAVA_LONG, 16, tape.address());
+                variables.set(JAVA_LONG, 24, tape.address() + tape.byteSize());
+                CURRENT.set(io);
+                try {
+                    result = (int) main.invokeExact(tape);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    CURRENT.remove();
+                }
+                if (io.error != null) {
+                    throw io.error;
+                }
+            }
+            if (result != 0) {
+                throw new RuntimeException("Tape pointer out of bounds");
+            }
+        }
+
+        @Override
+        public void close() {
+            unmap(memory);
+        }
+    }
+
+    // The I/O of one run, reached by the upcalls through CURRENT. Output goes to a native buffer
+    // that the code fills itself; input is read in blocks. An upcall must not throw, so a failed
+    // write or read is kept and reported when the run ends: the rest of the output is dropped, and a
+    // failed read ends the input.
+    private static class Runtime {
+        private final InputStream in;
+        private final OutputStream out;
+        private final MemorySegment buffer;
+        private final MemorySegment variables;
+        private final byte[] outBuf = new byte[BUFFER_SIZE];
+        private final byte[] inBuf = new byte[BUFFER_SIZE];
+        private int inPos = 0;
+        private int inLen = 0;
+        // Set at the end of the input, after which in is not read again, as bf_in_eof of bf_wrapper.c
+        private boolean inEof = false;
+        private RuntimeException error;
+
+        Runtime(InputStream in, OutputStream out, MemorySegment buffer, MemorySegment variables) {
+            this.in = in;
+            this.out = out;
+            this.buffer = buffer;
+            this.variables = variables;
+        }
+
+        // Writes the buffer up to position and returns its start
+        long flush(long position) {
+            int length = (int) (position - buffer.address());
+            if (error == null) {
+                MemorySegment.copy(buffer, JAVA_BYTE, 0, outBuf, 0, length);
+                try {
+                    out.write(outBuf, 0, length);
+                    out.flush();
+                } catch (IOException e) {
+                    error = new RuntimeException("Error writing the program output: " + e.getMessage(), e);
+                }
+            }
+            return buffer.address();
+        }
+
+        // One byte of input, or -1 at the end of it, as bf_read: the output up to position is written
+        // only before a read that may block, and bf_out_pos is left where the output continues.
+        int read(long position) {
+            variables.set(JAVA_LONG, 0, position);
+            if (inPos == inLen) {
+                if (inEof) {
+                    return -1;
+                }
+                variables.set(JAVA_LONG, 0, flush(position));
+                try {
+                    inLen = in.read(inBuf);
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = new RuntimeException("Error reading the program input: " + e.getMessage(), e);
+                    }
+                    inLen = 0;
+                }
+                inPos = 0;
+                if (inLen <= 0) {
+                    inLen = 0;
+                    inEof = true;
+                    return -1;
+                }
+            }
+            return inBuf[inPos++] & 0xFF;
+        }
+
+        // Appends length bytes at data to the buffer, writing it out whenever it fills
+        long write(long position, long data, int length) {
+            MemorySegment source = MemorySegment.ofAddress(data).reinterpret(length);
+            int done = 0;
+            while (done < length) {
+                int offset = (int) (position - buffer.address());
+                int count = Math.min(length - done, BUFFER_SIZE - offset);
+                MemorySegment.copy(source, done, buffer, offset, count);
+                done += count;
+                position += count;
+                if (position == buffer.address() + BUFFER_SIZE) {
+                    position = flush(position);
+                }
+            }
+            return position;
+        }
+    }
+
+    private static final ThreadLocal<Runtime> CURRENT = new ThreadLocal<>();
+
+    private static long flush(long position) {
+        return CURRENT.get().flush(position);
+    }
+
+    private static int read(long position) {
+        return CURRENT.get().read(position);
+    }
+
+    private static long write(long position, long data, int length) {
+        return CURRENT.get().write(position, data, length);
+    }
+
+    private static final Linker LINKER = Linker.nativeLinker();
+
+    private static final MemorySegment FLUSH = upcall("flush", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG));
+    private static final MemorySegment READ = upcall("read", FunctionDescriptor.of(JAVA_INT, JAVA_LONG));
+    private static final MemorySegment WRITE = upcall("write", FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_INT));
+
+    // Upcall stub for a static method of this class, kept for the life of the JVM
+    private static MemorySegment upcall(String name, FunctionDescriptor descriptor) {
+        try {
+            MethodHandle target = MethodHandles.lookup().findStatic(BFCompilerNative.class, name, descriptor.toMethodType());
+            return LINKER.upcallStub(target, descriptor, Arena.global());
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new RuntimeException("Cannot create the upcall for " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    // ---- mmap, mprotect and munmap of libc ----
+
+    private static final long PAGE_SIZE = 4096;
+    private static final int PROT_READ = 1;
+    private static final int PROT_WRITE = 2;
+    private static final int PROT_EXEC = 4;
+    private static final int MAP_PRIVATE = 0x02;
+    private static final int MAP_ANONYMOUS = 0x20;
+    private static final int MAP_NORESERVE = 0x4000;
+
+    private static final MethodHandle MMAP = libc("mmap", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG));
+    private static final MethodHandle MPROTECT = libc("mprotect", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle MUNMAP = libc("munmap", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG));
+
+    private static MethodHandle libc(String name, FunctionDescriptor descriptor) {
+        MemorySegment function = LINKER.defaultLookup().find(name)
+                .orElseThrow(() -> new RuntimeException("Cannot find " + name + " in libc"));
+        return LINKER.downcallHandle(function, descriptor);
+    }
+
+    private static long pages(long size) {
+        return (size + PAGE_SIZE - 1) & -PAGE_SIZE;
+    }
+
+    // Fresh zeroed private memory
+    private static MemorySegment map(long size, int protection, int flags) {
+        MemorySegment memory;
+        try {
+            memory = (MemorySegment) MMAP.invokeExact(MemorySegment.NULL, size, protection, MAP_PRIVATE | MAP_ANONYMOUS | flags, -1, 0L);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        if (memory.address() == -1) {
+            throw new RuntimeException("Cannot map " + size + " bytes of memory");
+        }
+        return memory.reinterpret(size);
+    }
+
+    private static void protect(MemorySegment memory, long size, int protection) {
+        int result;
+        try {
+            result = (int) MPROTECT.invokeExact(memory, size, protection);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        if (result != 0) {
+            throw new RuntimeException("Cannot change the protection of " + size + " bytes of memory");
+        }
+    }
+
+    private static void unmap(MemorySegment memory) {
+        try {
+            int result = (int) MUNMAP.invokeExact(memory, memory.byteSize());
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,658 +1,735 @@
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class BFCompilerPE {
 
     public static void main(String[] args) {
         boolean optSl = false;
         boolean optScan = false;
-        if (!(args.length == 1 || args.length == 2)) {
-            System.out.println("Usage: java BFPartialEvaluator <brainfuck_file.bf> [[--o-simpleloops] or [--o-scanloops] or -O]");
+        boolean avx2 = false;
+        boolean elf = false;
+        boolean useCache = false;
+        boolean profile = false;
+        long maxSteps = DEFAULT_MAX_STEPS;
+        long maxMillis = 0;
+        if (args.length < 1) {
+            System.out.println("Usage: java BFPartialEvaluator <brainfuck_file.bf> [[--o-simpleloops] or [--o-scanloops] or -O] [--avx2] [--elf] [--cache] [--profile] [--pe-steps <n>] [--pe-time <ms>]");
+            System.out.println("       java BFPartialEvaluator --batch <file-or-directory>... [--flags \"<flags>\"]... [--out <dir>] [--jobs <n>]");
             return;
         }
-        if (args.length == 2) {
-            if (args[1].equals("--o-simpleloops")) {
+        if (args[0].equals("--batch")) {
+            BFBatch.main("BFCompilerPE", Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--pe-steps") && i + 1 < args.length) {
+                maxSteps = Long.parseLong(args[++i]);
+                continue;
+            } else if (args[i].equals("--pe-time") && i + 1 < args.length) {
+                maxMillis = Long.parseLong(args[++i]);
+                continue;
+            }
+            if (args[i].equals("--o-simpleloops")) {
                 optSl = true;
-            } else if (args[1].equals("--o-scanloops")) {
+            } else if (args[i].equals("--o-scanloops")) {
                 optScan = true;
-            } else if (args[1].equals("-O")) {
+            } else if (args[i].equals("-O")) {
                 optSl = true;
                 optScan = true;
+            } else if (args[i].equals("--avx2")) {
+                avx2 = true;
+            } else if (args[i].equals("--elf")) {
+                elf = true;
+            } else if (args[i].equals("--cache")) {
+                useCache = true;
+            } else if (args[i].equals("--profile")) {
+                profile = true;
             }
         }
 
         String bfFile = args[0];
-        String bfCode = "";
+        String cleanedCode = "";
+        // With --profile, the whole source, whose offsets the profile gives
+        String srcBfCode = null;
+        BFSource.Locations locations = null;
         try {
-            bfCode = new String(Files.readAllBytes(Paths.get(bfFile)));
+            if (profile) {
+                srcBfCode = Files.readString(Paths.get(bfFile), StandardCharsets.ISO_8859_1);
+                BFSource source = new BFSource(srcBfCode, true);
+                cleanedCode = source.readCleanCode();
+                locations = source.locations();
+            } else {
+                cleanedCode = BFSource.readAll(Paths.get(bfFile));
+            }
         } catch (IOException e) {
             System.err.println("Error reading the Brainfuck file: " + e.getMessage());
             return;
         }
 
-        String assemblyCode = bfToX86_64(bfCode, optSl, optScan);
+        BFCache cache = useCache ? BFCache.open() : null;
+        // With --pe-time the evaluation stops at a different point on every compile; any of them
+        // gives a correct program, so the first one cached is reused
+        String key = useCache ? BFCache.key("BFCompilerPE", profile ? srcBfCode : cleanedCode, optSl, optScan, avx2, elf, profile, maxSteps, maxMillis) : null;
+        byte[] output = useCache ? cache.load(key) : null;
+        PartialEvaluationResult peResult = null;
+        if (output != null) {
+            System.out.println("Found in the compilation cache");
+        } else {
+            peResult = partialEvaluate(cleanedCode, new Budget(maxSteps, maxMillis));
+            System.out.println("Partial evaluation stopped on " + peResult.stopReason + " after " + peResult.steps + " steps");
+            // With --elf, machine code straight into an object file, skipping the text and the assembler.
+            // Without --cache the assembly is written as it is generated instead.
+            if (elf || useCache) {
+                output = elf ? generateObjectCode(peResult, optSl, optScan, avx2, locations) : generateAssemblyCode(peResult, optSl, optScan, avx2, locations).getBytes();
+            }
+            if (useCache) {
+                cache.store(key, output);
+            }
+        }
 
-        String asmFile = "program.s";
-        try (FileWriter fileWriter = new FileWriter(asmFile)) {
-            fileWriter.write(assemblyCode);
+        String outputFile = elf ? "program.o" : "program.s";
+        try {
+            if (output != null) {
+                Files.write(Paths.get(outputFile), output);
+            } else {
+                try (Writer out = Files.newBufferedWriter(Paths.get(outputFile))) {
+                    writeAssemblyCode(peResult, out, optSl, optScan, avx2, locations);
+                } catch (RuntimeException e) {
+                    // No half-written assembly for the build to pick up
+                    Files.deleteIfExists(Paths.get(outputFile));
+                    throw e;
+                }
+            }
+        } catch (UncheckedIOException e) {
+            System.err.println(e.getMessage());
+            return;
         } catch (IOException e) {
-            System.err.println("Error writing the assembly file: " + e.getMessage());
+            System.err.println("Error writing " + outputFile + ": " + e.getMessage());
             return;
         }
 
-        System.out.println("Assembly code has been written to " + asmFile);
+        System.out.println((elf ? "Object" : "Assembly") + " code has been written to " + outputFile);
     }
 
     // We will introduce a new method to perform partial evaluation
     public static String bfToX86_64(String srcBfCode, boolean optSl, boolean optScan) {
+        return bfToX86_64(srcBfCode, optSl, optScan, false);
+    }
+
+    public static String bfToX86_64(String srcBfCode, boolean optSl, boolean optScan, boolean avx2) {
         // int tapeSize = 50000;
-        String bfCode = cleanCode(srcBfCode);
+        String bfCode = BFCompiler.cleanCode(srcBfCode);
 
         // New: Perform partial evaluation
         PartialEvaluationResult peResult = partialEvaluate(bfCode);
+        return generateAssemblyCode(peResult, optSl, optScan, avx2);
+    }
 
-        if (peResult.isFullyEvaluated) {
-            // The entire program was evaluated at compile time
-            return generateOutputAssembly(peResult.outputs);
-        } else {
-            // Perform optimizations and generate assembly code
-            Map<Integer, Map<Integer, Integer>> pointerEffectsMap = new HashMap<>();
+    public static String generateAssemblyCode(PartialEvaluationResult peResult, boolean optSl, boolean optScan, boolean avx2) {
+        return generateAssemblyCode(peResult, optSl, optScan, avx2, null);
+    }
 
-            if (optScan) {
-                bfCode = optimizeScanLoops(bfCode);
-            }
+    // With locations, those of the source the evaluated code was cleaned from, the program counts the
+    // runs of its loops
+    public static String generateAssemblyCode(PartialEvaluationResult peResult, boolean optSl, boolean optScan, boolean avx2, BFSource.Locations locations) {
+        BFCodeGen codeGen = new BFCodeGen(avx2);
+        emitCode(codeGen, peResult, optSl, optScan, locations);
+        return codeGen.toString();
+    }
 
-            if (optSl) {
-                OptimizeSimpleLoopsResult result = optimizeSimpleLoops(bfCode);
-                bfCode = result.optimizedCode;
-                pointerEffectsMap = result.pointerEffectsMap;
-            }
+    // The same assembly written to out as it is generated
+    public static void writeAssemblyCode(PartialEvaluationResult peResult, Writer out, boolean optSl, boolean optScan, boolean avx2) {
+        writeAssemblyCode(peResult, out, optSl, optScan, avx2, null);
+    }
+
+    public static void writeAssemblyCode(PartialEvaluationResult peResult, Writer out, boolean optSl, boolean optScan, boolean avx2, BFSource.Locations locations) {
+        BFCodeGen codeGen = new BFCodeGen(avx2, out);
+        emitCode(codeGen, peResult, optSl, optScan, locations);
+        codeGen.flush();
+    }
+
+    // The same code as generateAssemblyCode, as a relocatable ELF object
+    public static byte[] generateObjectCode(PartialEvaluationResult peResult, boolean optSl, boolean optScan, boolean avx2) {
+        return generateObjectCode(peResult, optSl, optScan, avx2, null);
+    }
 
-            // Generate assembly code, integrating partial evaluation results
-            return generateAssemblyCode(bfCode, pointerEffectsMap, peResult);
+    public static byte[] generateObjectCode(PartialEvaluationResult peResult, boolean optSl, boolean optScan, boolean avx2, BFSource.Locations locations) {
+        BFCodeGen codeGen = new BFCodeGen(avx2, true);
+        emitCode(codeGen, peResult, optSl, optScan, locations);
+        return codeGen.toElf();
+    }
+
+    private static void emitCode(BFCodeGen codeGen, PartialEvaluationResult peResult, boolean optSl, boolean optScan, BFSource.Locations locations) {
+        if (locations != null) {
+            codeGen.enableProfiling(locations);
+        }
+        if (peResult.isFullyEvaluated) {
+            // The entire program was evaluated at compile time
+            emitOutputCode(codeGen, peResult.outputs);
+        } else {
+            // Optimize only the code that is left to run after partial evaluation, a segment at a time,
+            // and generate the code, integrating partial evaluation results
+            emitCode(codeGen, new BFSource(peResult.remainingCode), BFPasses.forFlags(optSl, optScan), peResult);
         }
     }
 
     // New class to hold the result of partial evaluation
     public static class PartialEvaluationResult {
         public boolean isFullyEvaluated;
-        public List<Integer> outputs;
+        // Bytes printed before anything that depends on input
+        public byte[] outputs;
         public String remainingCode;
+        // Values to store before the remaining code runs, -1 for cells that depend on input
         public int[] tape;
         public int pointerPosition;
-
-        public PartialEvaluationResult(boolean isFullyEvaluated, List<Integer> outputs, String remainingCode, int[] tape, int pointerPosition) {
+        // Why evaluation stopped: "end", "dynamic", "steps", "time", "residual" or "tape"
+        public String stopReason;
+        // Commands evaluated at compile time, 0 when the program runs from its start after all
+        public long steps;
+        // The work that depends on input, in program order, with offsets from the start of the tape.
+        // It runs after the outputs and before the tape image.
+        public List<BFIR.Node> residualPrefix;
+        // Where the pieces of remainingCode come from in the evaluated code: pairs of the position of
+        // a piece in remainingCode and of its start in the evaluated code, in order
+        public int[] remainingPieces;
+
+        public PartialEvaluationResult(boolean isFullyEvaluated, byte[] outputs, String remainingCode, int[] tape, int pointerPosition, String stopReason, long steps, List<BFIR.Node> residualPrefix, int[] remainingPieces) {
             this.isFullyEvaluated = isFullyEvaluated;
             this.outputs = outputs;
             this.remainingCode = remainingCode;
             this.tape = tape;
             this.pointerPosition = pointerPosition;
+            this.stopReason = stopReason;
+            this.steps = steps;
+            this.residualPrefix = residualPrefix;
+            this.remainingPieces = remainingPieces;
         }
-    }
-
-    // New method to perform partial evaluation
-    public static PartialEvaluationResult partialEvaluate(String bfCode) {
-        int[] tape = new int[50000];
-        int pointer = 0;
-        Stack<Integer> loopStack = new Stack<>();
-        Map<Integer, Integer> loopStartToEnd = new HashMap<>();
-        Map<Integer, Integer> loopEndToStart = new HashMap<>();
 
-        // Precompute loop starts and ends
-        Stack<Integer> loopTempStack = new Stack<>();
-        for (int i = 0; i < bfCode.length(); i++) {
-            char c = bfCode.charAt(i);
-            if (c == '[') {
-                loopTempStack.push(i);
-            } else if (c == ']') {
-                if (loopTempStack.isEmpty()) {
-                    throw new RuntimeException("Unmatched ']' at position " + i);
+        // Position in the evaluated code of the command at position in remainingCode
+        public int sourcePosition(int position) {
+            int piece = 0;
+            for (int low = 0, high = remainingPieces.length / 2 - 1; low <= high; ) {
+                int middle = (low + high) >>> 1;
+                if (remainingPieces[2 * middle] <= position) {
+                    piece = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
                 }
-                int start = loopTempStack.pop();
-                loopStartToEnd.put(start, i);
-                loopEndToStart.put(i, start);
             }
+            return remainingPieces[2 * piece + 1] + position - remainingPieces[2 * piece];
         }
-        if (!loopTempStack.isEmpty()) {
-            throw new RuntimeException("Unmatched '[' at position " + loopTempStack.peek());
+    }
+
+    // Cap on the residual prefix, so unrolling a loop that reads input cannot grow the generated code
+    // without bound
+    public static final int MAX_RESIDUAL_NODES = 1 << 16;
+
+    // About 20 ms of evaluation in a fresh JVM, before the evaluation loop is compiled, so that a
+    // default compile takes no longer than one without partial evaluation; a program that runs longer
+    // is finished by the generated code instead
+    public static final long DEFAULT_MAX_STEPS = 100_000L;
+
+    // Cells the evaluation keeps track of
+    public static final int TAPE_SIZE = 50000;
+
+    // Limits on the work partialEvaluate may do. 0 means no limit.
+    public static class Budget {
+        public long maxSteps;
+        public long maxMillis;
+
+        public Budget(long maxSteps, long maxMillis) {
+            this.maxSteps = maxSteps;
+            this.maxMillis = maxMillis;
+        }
+    }
+
+    public static PartialEvaluationResult partialEvaluate(String bfCode) {
+        return partialEvaluate(bfCode, new Budget(DEFAULT_MAX_STEPS, 0));
+    }
+
+    // The cleaned code decoded for partial evaluation, with the opcodes of BFInterpreter. Runs of +-
+    // and <> are folded, and [-] and [+] become CLEAR. positions[k] is the index in the cleaned code
+    // where instruction k starts, so a stop can hand the rest of the source to the code generator.
+    // Loops the optimizer would summarize become OP_MULTIPLY or OP_SCAN. Their args is the jump past
+    // the loop, as for OP_JZ; the body is never run, so the slot after them holds the index of the
+    // BFIR.MultiplyLoop or BFIR.ScanLoop in summaries.
+    public static class EvaluationProgram {
+        public byte[] ops;
+        public int[] args;
+        public int[] positions;
+        public List<BFIR.Node> summaries;
+        public int length;
+
+        public EvaluationProgram(byte[] ops, int[] args, int[] positions, List<BFIR.Node> summaries, int length) {
+            this.ops = ops;
+            this.args = args;
+            this.positions = positions;
+            this.summaries = summaries;
+            this.length = length;
         }
+    }
 
-        List<Integer> outputs = new ArrayList<>();
+    // Opcodes after those of BFInterpreter, for loops run in one step
+    public static final byte OP_MULTIPLY = 7;
+    public static final byte OP_SCAN = 8;
+
+    public static EvaluationProgram decode(String bfCode) {
+        int size = bfCode.length() + 1;
+        byte[] ops = new byte[size];
+        int[] args = new int[size];
+        int[] positions = new int[size];
+        List<BFIR.Node> summaries = new ArrayList<>();
+        int[] openStack = new int[size];
+        // Whether the body of each open loop so far only adds and moves
+        boolean[] openArithmetic = new boolean[size];
+        int stackTop = 0;
+        int n = 0;
         int i = 0;
         while (i < bfCode.length()) {
             char c = bfCode.charAt(i);
+            positions[n] = i;
             switch (c) {
-                case '>':
-                    pointer++;
-                    i++;
-                    break;
-                case '<':
-                    pointer--;
-                    i++;
-                    break;
                 case '+':
-                    tape[pointer] = (tape[pointer] + 1) % 256;
-                    i++;
-                    break;
-                case '-':
-                    tape[pointer] = (tape[pointer] - 1 + 256) % 256;
-                    i++;
-                    break;
+                case '-': {
+                    int delta = 0;
+                    while (i < bfCode.length() && (bfCode.charAt(i) == '+' || bfCode.charAt(i) == '-')) {
+                        delta += bfCode.charAt(i) == '+' ? 1 : -1;
+                        i++;
+                    }
+                    if ((delta & 0xFF) != 0) {
+                        ops[n] = BFInterpreter.OP_ADD;
+                        args[n] = delta & 0xFF;
+                        n++;
+                    }
+                    continue;
+                }
+                case '>':
+                case '<': {
+                    int delta = 0;
+                    while (i < bfCode.length() && (bfCode.charAt(i) == '>' || bfCode.charAt(i) == '<')) {
+                        delta += bfCode.charAt(i) == '>' ? 1 : -1;
+                        i++;
+                    }
+                    if (delta != 0) {
+                        ops[n] = BFInterpreter.OP_MOVE;
+                        args[n] = delta;
+                        n++;
+                    }
+                    continue;
+                }
                 case '.':
-                    outputs.add(tape[pointer]);
-                    i++;
+                    ops[n++] = BFInterpreter.OP_OUT;
+                    if (stackTop > 0) {
+                        openArithmetic[stackTop - 1] = false;
+                    }
                     break;
                 case ',':
-                    // Input required, cannot proceed further
-                    String remainingCode = bfCode.substring(i);
-                    return new PartialEvaluationResult(false, outputs, remainingCode, tape, pointer);
+                    ops[n++] = BFInterpreter.OP_IN;
+                    if (stackTop > 0) {
+                        openArithmetic[stackTop - 1] = false;
+                    }
+                    break;
                 case '[':
-                    if (tape[pointer] == 0) {
-                        // Skip to the matching ']'
-                        i = loopStartToEnd.get(i) + 1;
-                    } else {
-                        int loopEnd = loopStartToEnd.get(i);
-                        if (bfCode.substring(i, loopEnd).contains(",")) {
-                            // Stop partial eval
-                            String remainingCodeFromLoopStart = bfCode.substring(i);
-                            return new PartialEvaluationResult(false, outputs, remainingCodeFromLoopStart, tape, pointer);
-                        } else {
-                            loopStack.push(i);
-                            i++;
-                        }
+                    if (stackTop > 0) {
+                        openArithmetic[stackTop - 1] = false;
+                    }
+                    if (i + 2 < bfCode.length() && (bfCode.charAt(i + 1) == '-' || bfCode.charAt(i + 1) == '+') && bfCode.charAt(i + 2) == ']') {
+                        ops[n++] = BFInterpreter.OP_CLEAR;
+                        i += 3;
+                        continue;
                     }
+                    openArithmetic[stackTop] = true;
+                    openStack[stackTop++] = n;
+                    ops[n++] = BFInterpreter.OP_JZ;
                     break;
                 case ']':
-                    if (tape[pointer] != 0) {
-                        // Jump back to the matching '['
-                        i = loopEndToStart.get(i);
-                    } else {
-                        loopStack.pop();
-                        i++;
+                    if (stackTop == 0) {
+                        throw new RuntimeException("Unmatched ']' at position " + i);
+                    }
+                    int matchingBegin = openStack[--stackTop];
+                    args[matchingBegin] = n + 1;
+                    args[n] = matchingBegin + 1;
+                    ops[n++] = BFInterpreter.OP_JNZ;
+                    if (openArithmetic[stackTop] && n - matchingBegin > 2) {
+                        summarize(bfCode, positions[matchingBegin], i, matchingBegin, ops, args, summaries);
                     }
                     break;
                 default:
-                    i++;
                     break;
             }
+            i++;
         }
-        // Program fully evaluated
-        return new PartialEvaluationResult(true, outputs, "", tape, pointer);
-    }
-
-    // New method to generate assembly code for fully evaluated programs
-    public static String generateOutputAssembly(List<Integer> outputs) {
-        StringBuilder assemblyCode = new StringBuilder();
-        assemblyCode.append("""
-        .global bf_main
-        .section .text
-    bf_main:
-        """);
-        for (int value : outputs) {
-            assemblyCode.append("    movb $" + value + ", %dil\n");
-            assemblyCode.append("    call putchar\n");
+        if (stackTop != 0) {
+            throw new RuntimeException("Unmatched '[' at position " + positions[openStack[stackTop - 1]]);
         }
-        assemblyCode.append("    ret\n");
-        return assemblyCode.toString();
+        positions[n] = bfCode.length();
+        return new EvaluationProgram(ops, args, positions, summaries, n);
     }
 
-    // Modified method to generate assembly code with partial evaluation results
-    public static String generateAssemblyCode(String bfCode, Map<Integer, Map<Integer, Integer>> pointerEffectsMap, PartialEvaluationResult peResult) {
-        StringBuilder assemblyCode = new StringBuilder();
-        assemblyCode.append("""
-        .global bf_main
-        .section .text
-    bf_main:
-        """);
-
-        assemblyCode.append("    push %r13\n");
-        assemblyCode.append("    push %r14\n");
-        assemblyCode.append("    push %r15\n");
-
-        // Initialize the tape pointer and set precomputed cell values
-        assemblyCode.append("    # Initialize tape pointer\n");
-        assemblyCode.append("    mov %rdi, %r15\n"); // Tape pointer
-        assemblyCode.append("    lea 50000(%r15), %r14\n"); // End of tape
-        assemblyCode.append("    mov %r15, %r13\n"); // Start of tape
-
-        // Set the tape to the precomputed values from partial evaluation
-        for (int i = 0; i < peResult.tape.length; i++) {
-            if (peResult.tape[i] != 0) {
-                // assemblyCode.append("    movb $" + peResult.tape[i] + ", " + (i - peResult.pointerPosition) + "(%r15)\n");
-                assemblyCode.append("    movb $" + peResult.tape[i] + ", " + (i) + "(%r15)\n");
-            }
-        }
-
-        // Adjust the pointer to the position after partial evaluation
-        if (peResult.pointerPosition != 0) {
-            assemblyCode.append("    add $" + peResult.pointerPosition + ", %r15\n");
-        }
-
-        // Output any precomputed outputs
-        for (int value : peResult.outputs) {
-            assemblyCode.append("    movb $" + value + ", %dil\n");
-            assemblyCode.append("    call putchar\n");
+    // Asks the optimization passes for a summary of the innermost loop between loopStart and loopEnd
+    // in the source, which starts at instruction k, and turns it into a one-step instruction if
+    // there is one
+    private static void summarize(String bfCode, int loopStart, int loopEnd, int k, byte[] ops, int[] args, List<BFIR.Node> summaries) {
+        BFIR.Loop loop = (BFIR.Loop) BFIR.parse(bfCode.substring(loopStart, loopEnd + 1)).get(0);
+        BFPasses.ScanLoopResult scan = BFPasses.isOptimizableScanLoop(loop);
+        if (scan.isOptimizable) {
+            ops[k] = OP_SCAN;
+            summaries.add(new BFIR.ScanLoop(loopStart, scan.stride));
+        } else if (BFPasses.isSimple(loop)) {
+            ops[k] = OP_MULTIPLY;
+            summaries.add(BFPasses.optimizeLoop(loop));
+        } else {
+            return;
         }
+        args[k + 1] = summaries.size() - 1;
+    }
 
-        
-        // Continue generating code for the remaining Brainfuck code
-        // Build loop mappings for the remaining code
-        String remainingCode = peResult.remainingCode;
-        LoopMappings loopMappings = buildLoopMappings(remainingCode);
-        Map<Integer, Integer> loopStartToEnd = loopMappings.loopStartToEnd;
-        Map<Integer, Integer> loopEndToStart = loopMappings.loopEndToStart;
-    
-        
-        Map<Integer, String[]> loopLabelsMap = new HashMap<>();
-        
-        int labelId = 0;
-        // Stack<String[]> loopStack = new Stack<>();
-        int loopId = 0;
-
-        // String remainingCode = peResult.remainingCode;
-        for (int i = 0; i < remainingCode.length(); i++) {
-            char c = remainingCode.charAt(i);
-            switch (c) {
-                case '>':
-                    assemblyCode.append("    inc %r15\n");
-                    break;
-                case '<':
-                    assemblyCode.append("    dec %r15\n");
+    // New method to perform partial evaluation. Cells start known, and a cell read from input is
+    // unknown until it is cleared or set again; work on unknown cells goes to the residual prefix while
+    // everything else is still folded. Evaluation stops where control flow depends on an unknown cell:
+    // a loop tested on one, or a scan that reaches one. The budget is checked each time a loop jumps
+    // back to its start; when it runs out, evaluation stops at the head of that loop. A step is one BF
+    // command, and a folded run or a loop run in one step counts as its length in the source.
+    // Evaluation also stops in front of a move, loop or scan that would leave the first TAPE_SIZE
+    // cells; the generated code then runs it on its own tape, which grows, or stops the program if it
+    // moves off the start.
+    public static PartialEvaluationResult partialEvaluate(String bfCode, Budget budget) {
+        long maxSteps = budget.maxSteps > 0 ? budget.maxSteps : Long.MAX_VALUE;
+        long deadline = budget.maxMillis > 0 ? System.nanoTime() + budget.maxMillis * 1_000_000 : 0;
+        long steps = 0;
+        // The clock is read every 4096 jumps back, to keep it off the evaluation loop
+        long jumpsBack = 0;
+
+        EvaluationProgram program = decode(bfCode);
+        byte[] ops = program.ops;
+        int[] args = program.args;
+        int[] positions = program.positions;
+        int length = program.length;
+
+        int[] tape = new int[TAPE_SIZE];
+        // Known cells are zero in the generated code until the tape image is stored; a cell is made
+        // unknown only after the prefix has stored its value
+        boolean[] unknown = new boolean[tape.length];
+        // Until the first input every cell is known, and the checks on unknown are skipped
+        boolean readInput = false;
+        int pointer = 0;
+        // The '[' of every loop being run, innermost on top
+        int[] loopStack = new int[16];
+        int loopDepth = 0;
+        ByteArrayOutputStream outputs = new ByteArrayOutputStream();
+        List<BFIR.Node> residual = new ArrayList<>();
+
+        int pc = 0;
+        // Where the remaining code starts: -1 while running, a position inside the innermost loop on
+        // loopStack (or at top level), or the length of the code for a stop at the loop's ']'
+        int stopPosition = -1;
+        String stopReason = null;
+        while (pc < length) {
+            switch (ops[pc]) {
+                case BFInterpreter.OP_ADD:
+                    if (readInput && unknown[pointer]) {
+                        residual.add(new BFIR.Add(positions[pc], pointer, args[pc]));
+                    } else {
+                        tape[pointer] = (tape[pointer] + args[pc]) & 0xFF;
+                    }
                     break;
-                case '+':
-                    assemblyCode.append("    incb (%r15)\n");
+                case BFInterpreter.OP_MOVE:
+                    if (!onTape(pointer + (long) args[pc])) {
+                        stopReason = "tape";
+                        stopPosition = positions[pc];
+                        break;
+                    }
+                    pointer += args[pc];
                     break;
-                case '-':
-                    assemblyCode.append("    decb (%r15)\n");
+                case BFInterpreter.OP_OUT:
+                    if (readInput && unknown[pointer]) {
+                        residual.add(new BFIR.Output(positions[pc], pointer));
+                    } else if (residual.isEmpty()) {
+                        outputs.write(tape[pointer]);
+                    } else {
+                        appendOutput(residual, positions[pc], tape[pointer]);
+                    }
                     break;
-                case '.':
-                    assemblyCode.append("    movzbl (%r15), %edi\n");
-                    assemblyCode.append("    call putchar\n");
+                case BFInterpreter.OP_IN:
+                    residual.add(new BFIR.Input(positions[pc], pointer));
+                    unknown[pointer] = true;
+                    readInput = true;
                     break;
-                case ',':
-                    assemblyCode.append("    call getchar\n");
-                    assemblyCode.append("    movb %al, (%r15)\n");
+                case BFInterpreter.OP_JZ:
+                    if (readInput && unknown[pointer]) {
+                        stopPosition = positions[pc];
+                        break;
+                    }
+                    if (tape[pointer] == 0) {
+                        steps++;
+                        pc = args[pc];
+                        continue;
+                    }
+                    if (loopDepth == loopStack.length) {
+                        loopStack = Arrays.copyOf(loopStack, loopDepth * 2);
+                    }
+                    loopStack[loopDepth++] = pc;
                     break;
-                case '[':
-                    String loopStart = "loop_start_" + labelId;
-                    String loopEnd = "loop_end_" + labelId;
-                    labelId++;
-                    loopLabelsMap.put(i, new String[]{loopStart, loopEnd});
-
-                    assemblyCode.append(loopStart + ":\n");
-                    assemblyCode.append("    movzbl (%r15), %eax\n");
-                    assemblyCode.append("    test %eax, %eax\n");
-                    assemblyCode.append("    je " + loopEnd + "\n");
+                case BFInterpreter.OP_JNZ:
+                    if (readInput && unknown[pointer]) {
+                        stopPosition = bfCode.length();
+                        break;
+                    }
+                    if (tape[pointer] != 0) {
+                        steps++;
+                        if (steps >= maxSteps) {
+                            stopReason = "steps";
+                        } else if (readInput && residual.size() > MAX_RESIDUAL_NODES) {
+                            stopReason = "residual";
+                        } else if (deadline != 0 && (++jumpsBack & 0xFFF) == 0 && System.nanoTime() > deadline) {
+                            stopReason = "time";
+                        }
+                        if (stopReason != null) {
+                            // Out of budget: the rest of the run starts at the head of this loop
+                            stopPosition = bfCode.length();
+                            break;
+                        }
+                        // Back into the body; the cell was just tested
+                        pc = args[pc];
+                        continue;
+                    }
+                    loopDepth--;
                     break;
-                case ']':
-                    int matchingStart = loopEndToStart.get(i);
-                    String[] labels = loopLabelsMap.get(matchingStart);
-                    String loopStartLabel = labels[0];
-                    String loopEndLabel = labels[1];
-                    assemblyCode.append("    jmp " + loopStartLabel + "\n");
-                    assemblyCode.append(loopEndLabel + ":\n");
+                case BFInterpreter.OP_CLEAR:
+                    if (readInput && unknown[pointer]) {
+                        residual.add(new BFIR.Fill(positions[pc], pointer, 1, 0));
+                        unknown[pointer] = false;
+                    }
+                    tape[pointer] = 0;
                     break;
-                case 'G':
-                    if (pointerEffectsMap.containsKey(i)) {
-                        Map<Integer, Integer> pointerEffects = pointerEffectsMap.get(i);
-
-                        assemblyCode.append("    movzbl (%r15), %eax\n");
-
-                        for (Map.Entry<Integer, Integer> entry : pointerEffects.entrySet()) {
-                            int pos = entry.getKey();
-                            int effect = entry.getValue();
-                            if (pos == 0) continue;
-                            if (effect == 0) continue;
-
-                            assemblyCode.append("    movzbl " + pos + "(%r15), %ebx\n");
-
-                            if (effect == 1) {
-                                assemblyCode.append("    add %eax, %ebx\n");
-                            } else if (effect == -1) {
-                                assemblyCode.append("    sub %eax, %ebx\n");
+                case OP_MULTIPLY: {
+                    BFIR.MultiplyLoop loop = (BFIR.MultiplyLoop) program.summaries.get(args[pc + 1]);
+                    boolean runs = (readInput && unknown[pointer]) || tape[pointer] != 0;
+                    if (runs && !loop.pointerEffects.isEmpty() && !(onTape(pointer + (long) loop.pointerEffects.firstKey())
+                            && onTape(pointer + (long) loop.pointerEffects.lastKey()))) {
+                        stopReason = "tape";
+                        stopPosition = positions[pc];
+                        break;
+                    }
+                    // A loop that runs counts as its length in the source
+                    int loopSteps = positions[args[pc]] - positions[pc];
+                    if (readInput && unknown[pointer]) {
+                        // Run by the generated code, after storing the known cells it adds to
+                        for (int offset : loop.pointerEffects.keySet()) {
+                            int cell = pointer + offset;
+                            if (!unknown[cell] && tape[cell] != 0) {
+                                residual.add(new BFIR.Fill(positions[pc], cell, 1, tape[cell]));
+                            }
+                            unknown[cell] = true;
+                        }
+                        residual.add(new BFIR.Move(positions[pc], pointer));
+                        residual.add(loop);
+                        residual.add(new BFIR.Move(positions[pc], -pointer));
+                        unknown[pointer] = false;
+                        tape[pointer] = 0;
+                    } else if (tape[pointer] != 0) {
+                        int count = tape[pointer] * loop.tripCountFactor();
+                        for (Map.Entry<Integer, Integer> effect : loop.pointerEffects.entrySet()) {
+                            int cell = pointer + effect.getKey();
+                            if (unknown[cell]) {
+                                residual.add(new BFIR.Add(positions[pc], cell, count * effect.getValue() & 0xFF));
                             } else {
-                                assemblyCode.append("    mov $" + Math.abs(effect) + ", %ecx\n");
-                                assemblyCode.append("    imul %eax, %ecx\n");
-                                if (effect > 0) {
-                                    assemblyCode.append("    add %ecx, %ebx\n");
-                                } else {
-                                    assemblyCode.append("    sub %ecx, %ebx\n");
-                                }
+                                tape[cell] = (tape[cell] + count * effect.getValue()) & 0xFF;
                             }
-                            assemblyCode.append("    movb %bl, " + pos + "(%r15)\n");
                         }
-
-                        assemblyCode.append("    movb $0, (%r15)\n");
+                        tape[pointer] = 0;
+                    } else {
+                        loopSteps = 1;
                     }
+                    steps += loopSteps;
+                    pc = args[pc];
+                    continue;
+                }
+                case OP_SCAN: {
+                    int stride = ((BFIR.ScanLoop) program.summaries.get(args[pc + 1])).stride;
+                    int start = pointer;
+                    while (!unknown[pointer] && tape[pointer] != 0 && onTape(pointer + (long) stride)) {
+                        pointer += stride;
+                    }
+                    if (unknown[pointer] || tape[pointer] != 0) {
+                        // The scan is run again by the generated code
+                        if (!unknown[pointer]) {
+                            stopReason = "tape";
+                        }
+                        pointer = start;
+                        stopPosition = positions[pc];
+                        break;
+                    }
+                    steps += pointer != start ? positions[args[pc]] - positions[pc] : 1;
+                    pc = args[pc];
+                    continue;
+                }
+                default:
                     break;
-                case 'R':
-                assemblyCode.append(String.format("""
-                    test $15, %%r15
-                    jne scan_right_fallback_%d
-
-                    scan_right_loop_%d:
-                        cmp %%r14, %%r15            # Boundary check: tape_end
-                        jge end_program            # If pointer is at the end, exit
-                        movdqa (%%r15), %%xmm0        # Load 16 bytes into xmm0
-                        pxor   %%xmm1, %%xmm1
-                        pcmpeqb %%xmm1, %%xmm0        # Compare for zeros
-                        pmovmskb %%xmm0, %%eax        # Move mask of comparison results to %%eax
-                        test %%eax, %%eax             # Test if any zero was found
-                        jne scan_right_found_%d
-                        add $16, %%r15               # Move 16 bytes to the right
-                        jmp scan_right_loop_%d
-
-                    scan_right_found_%d:
-                        tzcnt %%eax, %%ecx            # Find the index of the first zero
-                        add %%rcx, %%r15              # Move pointer to the position of the first zero
-                        jmp scan_right_exit_%d
-
-                    scan_right_fallback_%d:
-                        cmp %%r14, %%r15
-                        jge end_program 
-                        movzbl (%%r15), %%eax
-                        test %%eax, %%eax
-                        je scan_right_exit_%d
-                        inc %%r15
-                        jmp scan_right_fallback_%d
-
-                    scan_right_exit_%d:
-                    """, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId));
-                    loopId++;
-                    break;
-                case 'L':
-                assemblyCode.append(String.format("""
-                    test $15, %%r15
-                    jne scan_left_fallback_%d
-
-                    scan_left_loop_%d:
-                        cmp %%r15, %%r13            # Boundary check: tape_end
-                        jge end_program            # If pointer is at the end, exit
-                        movdqa -16(%%r15), %%xmm0     # Load 16 bytes into xmm0 (move left)
-                        pxor   %%xmm1, %%xmm1
-                        pcmpeqb %%xmm1, %%xmm0        # Compare for zeros
-                        pmovmskb %%xmm0, %%eax        # Move mask of comparison results to %%eax
-                        test %%eax, %%eax             # Test if any zero was found
-                        jne scan_left_found_%d
-                        sub $16, %%r15               # Move 16 bytes to the left
-                        jmp scan_left_loop_%d
-
-                    scan_left_found_%d:
-                        tzcnt %%eax, %%ecx            # Find the index of the first zero
-                        sub %%rcx, %%r15              # Move pointer to the position of the first zero
-                        jmp scan_left_exit_%d
-
-                    scan_left_fallback_%d:
-                        cmp %%r15, %%r13
-                        jge end_program 
-                        movzbl (%%r15), %%eax
-                        test %%eax, %%eax
-                        je scan_left_exit_%d
-                        dec %%r15
-                        jmp scan_left_fallback_%d
-
-                    scan_left_exit_%d:
-                    """, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId, loopId));
-                    loopId++;
-                    break;
             }
+            if (stopPosition >= 0) {
+                break;
+            }
+            steps += positions[pc + 1] - positions[pc];
+            pc++;
+        }
+        if (stopReason == null) {
+            stopReason = stopPosition >= 0 ? "dynamic" : "end";
         }
 
-        assemblyCode.append("""
-    end_program:
-        pop %r15
-        pop %r14
-        pop %r13
-        ret                      # Return from the Brainfuck main function
-    """);
-
-        return assemblyCode.toString();
-    }
-
-    // Existing methods like cleanCode, optimizeScanLoops, optimizeSimpleLoops, etc., remain the same
-    // ...
+        if (stopPosition < 0) {
+            // Program fully evaluated, unless some of it depends on input
+            return new PartialEvaluationResult(residual.isEmpty(), outputs.toByteArray(), "", new int[tape.length], pointer, stopReason, steps, residual, new int[] {0, bfCode.length()});
+        }
 
-    // We can leave the rest of the methods as they are unless further modification is needed
+        List<Integer> pieces = new ArrayList<>();
+        String remainingCode = residualCode(bfCode, program, loopStack, loopDepth, stopPosition, pieces);
+        if (remainingCode.length() > bfCode.length()) {
+            // A stop deep in nested loops repeats each of them in the remaining code. Running the
+            // program from its start instead costs the generated code the steps evaluated here, and
+            // compiles to less code than the remaining code would.
+            return new PartialEvaluationResult(false, new byte[0], bfCode, new int[tape.length], 0, stopReason, 0, new ArrayList<>(), new int[] {0, 0});
+        }
 
-    // For brevity, those methods are not repeated here
-    public static String cleanCode(String code) {
-        StringBuilder sb = new StringBuilder();
-        for (char c : code.toCharArray()) {
-            if (c == '.' || c == ',' || c == '[' || c == ']' || c == '<' || c == '>' || c == '+' || c == '-') {
-                sb.append(c);
-            }
+        // The tape image holds the known cells
+        int[] image = new int[tape.length];
+        for (int cell = 0; cell < tape.length; cell++) {
+            image[cell] = unknown[cell] ? -1 : tape[cell];
+        }
+        int[] remainingPieces = new int[pieces.size()];
+        for (int i = 0; i < remainingPieces.length; i++) {
+            remainingPieces[i] = pieces.get(i);
         }
-        return sb.toString();
+        return new PartialEvaluationResult(false, outputs.toByteArray(), remainingCode, image, pointer, stopReason, steps, residual, remainingPieces);
     }
 
-    public static class ScanLoopResult {
-        public boolean isOptimizable;
-        public int netDirection;
+    private static boolean onTape(long cell) {
+        return cell >= 0 && cell < TAPE_SIZE;
+    }
 
-        public ScanLoopResult(boolean isOptimizable, int netDirection) {
-            this.isOptimizable = isOptimizable;
-            this.netDirection = netDirection;
+    // Adds a known byte to the output at the end of the residual prefix, in one ConstantOutput node for
+    // a run of them
+    private static void appendOutput(List<BFIR.Node> residual, int position, int value) {
+        BFIR.Node last = residual.get(residual.size() - 1);
+        if (!(last instanceof BFIR.ConstantOutput)) {
+            last = new BFIR.ConstantOutput(position, new byte[16], 0);
+            residual.add(last);
         }
+        BFIR.ConstantOutput output = (BFIR.ConstantOutput) last;
+        if (output.length == output.values.length) {
+            output.values = Arrays.copyOf(output.values, output.length * 2);
+        }
+        output.values[output.length++] = (byte) value;
     }
 
-    public static ScanLoopResult isOptimizableScanLoop(String bfCode, int loopStart, int loopEnd) {
-        String loopBody = bfCode.substring(loopStart + 1, loopEnd);
-        int pointer = 0;
-
-        for (char c : loopBody.toCharArray()) {
-            if (c == '>') {
-                pointer++;
-            } else if (c == '<') {
-                pointer--;
-            } else {
-                return new ScanLoopResult(false, 0);
-            }
+    // Code that continues a run stopped inside the innermost loop on loopStack, as a plain program.
+    // It starts with the rest of that loop's body from stopPosition, or with nothing for a stop at
+    // its ']' with the loop to be tested again. Each entered loop is then closed by running the loop
+    // again from its start and finishing the rest of the body around it:
+    //   [A[B[C]D]E]F stopped at the ']' of [C] continues as [C] D [B[C]D] E [A[B[C]D]E] F
+    // Adds the pieces of bfCode it is made of to pieces, as remainingPieces lists them.
+    private static String residualCode(String bfCode, EvaluationProgram program, int[] loopStack, int loopDepth, int stopPosition, List<Integer> pieces) {
+        if (loopDepth == 0) {
+            pieces.addAll(List.of(0, stopPosition));
+            return bfCode.substring(stopPosition);
         }
-
-        if (pointer == 0) {
-            return new ScanLoopResult(false, 0);
+        StringBuilder residual = new StringBuilder();
+        int start = program.positions[loopStack[--loopDepth]];
+        int end = loopEnd(program, loopStack[loopDepth]);
+        if (stopPosition < end) {
+            appendPiece(residual, pieces, bfCode, stopPosition, end);
         }
-
-        int absPointer = Math.abs(pointer);
-        if ((absPointer & (absPointer - 1)) != 0) {
-            return new ScanLoopResult(false, 0);
+        appendPiece(residual, pieces, bfCode, start, end + 1);
+        while (loopDepth > 0) {
+            int outerStart = program.positions[loopStack[--loopDepth]];
+            int outerEnd = loopEnd(program, loopStack[loopDepth]);
+            appendPiece(residual, pieces, bfCode, end + 1, outerEnd);
+            appendPiece(residual, pieces, bfCode, outerStart, outerEnd + 1);
+            end = outerEnd;
         }
-
-        int netDirection = pointer > 0 ? 1 : -1;
-        return new ScanLoopResult(true, netDirection);
+        appendPiece(residual, pieces, bfCode, end + 1, bfCode.length());
+        return residual.toString();
     }
 
-    public static String optimizeScanLoops(String bfCode) {
-        String optimizedCode = bfCode;
-        List<int[]> loops = findLoops(optimizedCode);
-        while (true) {
-            boolean optimizedAny = false;
-            for (int[] loop : loops) {
-                int loopStart = loop[0];
-                int loopEnd = loop[1];
-                ScanLoopResult result = isOptimizableScanLoop(optimizedCode, loopStart, loopEnd);
-                if (result.isOptimizable) {
-                    optimizedAny = true;
-                    if (result.netDirection == 1) {
-                        optimizedCode = optimizedCode.substring(0, loopStart) + 'R' + optimizedCode.substring(loopEnd + 1);
-                    } else {
-                        optimizedCode = optimizedCode.substring(0, loopStart) + 'L' + optimizedCode.substring(loopEnd + 1);
-                    }
-                    break;
-                }
-            }
-            if (!optimizedAny) {
-                break;
-            }
-            loops = findLoops(optimizedCode);
-        }
-        return optimizedCode;
+    private static void appendPiece(StringBuilder residual, List<Integer> pieces, String bfCode, int start, int end) {
+        pieces.add(residual.length());
+        pieces.add(start);
+        residual.append(bfCode, start, end);
     }
 
-    public static class OptimizeSimpleLoopsResult {
-        public String optimizedCode;
-        public Map<Integer, Map<Integer, Integer>> pointerEffectsMap;
-
-        public OptimizeSimpleLoopsResult(String optimizedCode, Map<Integer, Map<Integer, Integer>> pointerEffectsMap) {
-            this.optimizedCode = optimizedCode;
-            this.pointerEffectsMap = pointerEffectsMap;
-        }
+    // Position of the ']' that closes the loop whose '[' is instruction loopStart
+    private static int loopEnd(EvaluationProgram program, int loopStart) {
+        return program.positions[program.args[loopStart] - 1];
     }
 
-    public static OptimizeSimpleLoopsResult optimizeSimpleLoops(String bfCode) {
-        String optimizedCode = bfCode;
-        List<int[]> loops = findLoops(optimizedCode);
-        Map<Integer, Map<Integer, Integer>> pointerEffectsMap = new HashMap<>();
-
-        while (true) {
-            boolean optimizedAny = false;
-            for (int[] loop : loops) {
-                int loopStart = loop[0];
-                int loopEnd = loop[1];
-                if (isInnermost(optimizedCode, loopStart, loopEnd)) {
-                    if (isSimple(optimizedCode, loopStart, loopEnd)) {
-                        optimizedAny = true;
-                        OptimizeLoopResult optResult = optimizeLoop(optimizedCode, loopStart, loopEnd);
-                        optimizedCode = optResult.optimizedCode;
-                        Map<Integer, Integer> pointerEffects = optResult.pointerEffects;
-                        pointerEffectsMap.put(loopStart, pointerEffects);
-                        break;
-                    }
-                }
-            }
-            if (!optimizedAny) {
-                break;
-            }
-            loops = findLoops(optimizedCode);
-        }
+    // New method to generate assembly code for fully evaluated programs
+    public static String generateOutputAssembly(byte[] outputs) {
+        BFCodeGen codeGen = new BFCodeGen();
+        emitOutputCode(codeGen, outputs);
+        return codeGen.toString();
+    }
 
-        return new OptimizeSimpleLoopsResult(optimizedCode, pointerEffectsMap);
+    private static void emitOutputCode(BFCodeGen codeGen, byte[] outputs) {
+        codeGen.emitPrologue();
+        codeGen.emitConstantOutput(outputs);
+        codeGen.emitEpilogue();
     }
 
-    public static class OptimizeLoopResult {
-        public String optimizedCode;
-        public Map<Integer, Integer> pointerEffects;
+    // Modified method to generate assembly code with partial evaluation results
+    public static String generateAssemblyCode(List<BFIR.Node> program, PartialEvaluationResult peResult) {
+        return generateAssemblyCode(program, peResult, false);
+    }
 
-        public OptimizeLoopResult(String optimizedCode, Map<Integer, Integer> pointerEffects) {
-            this.optimizedCode = optimizedCode;
-            this.pointerEffects = pointerEffects;
-        }
+    public static String generateAssemblyCode(List<BFIR.Node> program, PartialEvaluationResult peResult, boolean avx2) {
+        BFCodeGen codeGen = new BFCodeGen(avx2);
+        emitCode(codeGen, program, peResult);
+        return codeGen.toString();
     }
 
-    public static OptimizeLoopResult optimizeLoop(String bfCode, int loopStart, int loopEnd) {
-        String loopBody = bfCode.substring(loopStart + 1, loopEnd);
-
-        int pointerPosition = 0;
-        Map<Integer, Integer> pointerEffects = new HashMap<>();
-
-        for (char command : loopBody.toCharArray()) {
-            if (command == '>') {
-                pointerPosition++;
-            } else if (command == '<') {
-                pointerPosition--;
-            } else if (command == '+') {
-                pointerEffects.put(pointerPosition, pointerEffects.getOrDefault(pointerPosition, 0) + 1);
-            } else if (command == '-') {
-                pointerEffects.put(pointerPosition, pointerEffects.getOrDefault(pointerPosition, 0) - 1);
-            }
-        }
+    private static void emitCode(BFCodeGen codeGen, List<BFIR.Node> program, PartialEvaluationResult peResult) {
+        emitEvaluatedState(codeGen, peResult);
+        codeGen.setSitePositions(peResult::sourcePosition);
 
-        String optimizedCode = bfCode.substring(0, loopStart) + 'G' + bfCode.substring(loopEnd + 1);
+        // Continue generating code for the remaining Brainfuck code
+        codeGen.emitProgram(program);
 
-        return new OptimizeLoopResult(optimizedCode, pointerEffects);
+        codeGen.emitEpilogue();
     }
 
-    public static boolean isSimple(String code, int loopStart, int loopEnd) {
-        String loopBody = code.substring(loopStart + 1, loopEnd);
-        int inBodyPointer = 0;
-        int startCellChange = 0;
-
-        for (char command : loopBody.toCharArray()) {
-            if (command == '[' || command == ']') {
-                throw new RuntimeException("You have called is_simple on a loop that is not innermost!");
-            } else if (command == '>') {
-                inBodyPointer++;
-            } else if (command == '<') {
-                inBodyPointer--;
-            } else if (command == '+') {
-                if (inBodyPointer == 0) {
-                    startCellChange++;
-                }
-            } else if (command == '-') {
-                if (inBodyPointer == 0) {
-                    startCellChange--;
-                }
-            } else if (command == '.' || command == ',') {
-                return false;
-            } else {
-                return false;
-            }
-        }
+    private static void emitCode(BFCodeGen codeGen, BFSource program, BFPasses.PassManager passManager, PartialEvaluationResult peResult) {
+        emitEvaluatedState(codeGen, peResult);
+        // The residual prefix has the positions of the evaluated code, the remaining code its own
+        codeGen.setSitePositions(peResult::sourcePosition);
 
-        return inBodyPointer == 0 && (startCellChange == 1 || startCellChange == -1);
-    }
+        // Continue generating code for the remaining Brainfuck code
+        codeGen.emitProgram(program, passManager, ForkJoinPool.commonPool());
 
-    public static boolean isInnermost(String code, int loopStart, int loopEnd) {
-        String loopBody = code.substring(loopStart + 1, loopEnd);
-        return !loopBody.contains("[");
+        codeGen.emitEpilogue();
     }
 
-    public static List<int[]> findLoops(String code) {
-        Stack<Integer> loopStack = new Stack<>();
-        List<int[]> loops = new ArrayList<>();
-
-        for (int i = 0; i < code.length(); i++) {
-            char c = code.charAt(i);
-            if (c == '[') {
-                loopStack.push(i);
-            } else if (c == ']') {
-                if (!loopStack.isEmpty()) {
-                    int start = loopStack.pop();
-                    loops.add(new int[]{start, i});
-                }
-            }
-        }
-        return loops;
-    }
+    // The prologue and the state partial evaluation left: its outputs, the residual prefix, the tape
+    // and the pointer
+    private static void emitEvaluatedState(BFCodeGen codeGen, PartialEvaluationResult peResult) {
+        codeGen.emitPrologue();
 
+        // Output any precomputed outputs
+        codeGen.emitConstantOutput(peResult.outputs);
 
-    public static class LoopMappings {
-        public Map<Integer, Integer> loopStartToEnd;
-        public Map<Integer, Integer> loopEndToStart;
-    
-        public LoopMappings(Map<Integer, Integer> loopStartToEnd, Map<Integer, Integer> loopEndToStart) {
-            this.loopStartToEnd = loopStartToEnd;
-            this.loopEndToStart = loopEndToStart;
-        }
-    }
+        // Run the input-dependent part of what was evaluated, from the start of the tape
+        codeGen.emitProgram(peResult.residualPrefix);
 
-    public static LoopMappings buildLoopMappings(String code) {
-        Map<Integer, Integer> loopStartToEnd = new HashMap<>();
-        Map<Integer, Integer> loopEndToStart = new HashMap<>();
-        Stack<Integer> loopStack = new Stack<>();
-    
-        for (int idx = 0; idx < code.length(); idx++) {
-            char c = code.charAt(idx);
-            if (c == '[') {
-                loopStack.push(idx);
-            } else if (c == ']') {
-                if (loopStack.isEmpty()) {
-                    throw new RuntimeException("Unmatched ']' at position " + idx);
-                }
-                int start = loopStack.pop();
-                loopStartToEnd.put(start, idx);
-                loopEndToStart.put(idx, start);
-            }
-        }
-        if (!loopStack.isEmpty()) {
-            throw new RuntimeException("Unmatched '[' at position " + loopStack.peek());
-        }
-    
-        return new LoopMappings(loopStartToEnd, loopEndToStart);
-    }
-    
+        // Set the tape to the precomputed values from partial evaluation
+        codeGen.emitTapeImage(peResult.tape);
 
+        // Adjust the pointer to the position after partial evaluation
+        codeGen.emitPointerAdjust(peResult.pointerPosition);
+    }
 }
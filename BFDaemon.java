@@ -0,0 +1,110 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Keeps BFCompiler and BFCompilerPE loaded and JIT-compiled, and serves compile requests on a Unix
+// domain socket, so a build that compiles many files pays JVM startup and warmup once. bf_client.c
+// is the client that replaces `java BFCompiler...`.
+//
+// Protocol, one request per connection:
+//   request:  <compiler> [flags...]\n<source bytes up to the end of the stream>
+//   response: ok <file> <length>\n<length bytes of the file><messages of the compiler>
+//         or: error <message>\n
+// The compiler is BFCompiler or BFCompilerPE and the flags are those of their main methods. The
+// file is program.s, or program.o with --elf.
+public class BFDaemon {
+
+    public static final String DEFAULT_SOCKET = "/tmp/bfcompiler.sock";
+
+    // Longest request line; anything longer is not a list of flags
+    private static final int MAX_REQUEST_LINE = 4096;
+
+    public static void main(String[] args) {
+        String socket = args.length > 0 ? args[0] : DEFAULT_SOCKET;
+        Path path = Path.of(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            // A socket file left by a daemon that did not shut down would make bind fail
+            Files.deleteIfExists(path);
+            server.bind(UnixDomainSocketAddress.of(path));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // Nothing left to do about it on the way out
+                }
+            }));
+            System.out.println("Compiling requests on " + socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                workers.submit(() -> serve(client));
+            }
+        } catch (IOException e) {
+            System.err.println("Error serving on " + socket + ": " + e.getMessage());
+        }
+    }
+
+    private static void serve(SocketChannel client) {
+        try (client) {
+            byte[] request = readAll(client);
+            byte[] response;
+            try {
+                response = compile(request);
+            } catch (RuntimeException | StackOverflowError e) {
+                String message = e.getMessage() == null ? e.toString() : e.getMessage();
+                response = ("error " + message.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(response);
+            while (buffer.hasRemaining()) {
+                client.write(buffer);
+            }
+        } catch (IOException e) {
+            // The client went away; there is no one to report to
+        }
+    }
+
+    private static byte[] readAll(SocketChannel client) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        while (client.read(buffer) >= 0) {
+            request.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return request.toByteArray();
+    }
+
+    // The response to one request: the file the compiler writes and what it prints
+    public static byte[] compile(byte[] request) {
+        int newline = 0;
+        while (newline < request.length && request[newline] != '\n') {
+            newline++;
+        }
+        if (newline == request.length || newline > MAX_REQUEST_LINE) {
+            throw new RuntimeException("Request without a compiler line");
+        }
+        String[] args = new String(request, 0, newline, StandardCharsets.UTF_8).trim().split(" +");
+        // One char per byte, so the offsets of a profile are those of the file
+        String bfCode = new String(request, newline + 1, request.length - newline - 1, StandardCharsets.ISO_8859_1);
+
+        BFBatch.Options options = BFBatch.Options.parse(args, 1);
+        BFBatch.Result result = BFBatch.compile(args[0], options, options.profile ? bfCode : BFCompiler.cleanCode(bfCode), null);
+        byte[] file = result.output;
+
+        byte[] header = ("ok " + result.file + " " + file.length + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] trailer = result.messages.getBytes(StandardCharsets.UTF_8);
+        byte[] response = Arrays.copyOf(header, header.length + file.length + trailer.length);
+        System.arraycopy(file, 0, response, header.length, file.length);
+        System.arraycopy(trailer, 0, response, header.length + file.length, trailer.length);
+        return response;
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+// Generates large synthetic BF programs for compile-time scalability measurements. Every program is
+// balanced, keeps the pointer inside the first cells of the tape and terminates quickly when run,
+// so the partial evaluator can process it too.
+public class BFGenerator {
+
+    public static final String[] SHAPES = {"nesting", "simpleloops", "scanchains", "straightline"};
+    public static final int[] SIZES = {1 << 10, 100 << 10, 10 << 20, 100 << 20};
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java BFGenerator <output directory>");
+            return;
+        }
+        Path outDir = Paths.get(args[0]);
+        try {
+            Files.createDirectories(outDir);
+            for (String shape : SHAPES) {
+                for (int size : SIZES) {
+                    Path file = outDir.resolve(shape + "_" + sizeName(size) + ".b");
+                    Files.write(file, generate(shape, size).getBytes(StandardCharsets.US_ASCII));
+                    System.out.println("Generated " + file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing the generated programs: " + e.getMessage());
+        }
+    }
+
+    public static String sizeName(int size) {
+        if (size % (1 << 20) == 0) {
+            return (size >> 20) + "M";
+        }
+        if (size % (1 << 10) == 0) {
+            return (size >> 10) + "K";
+        }
+        return Integer.toString(size);
+    }
+
+    public static int parseSize(String size) {
+        if (size.endsWith("M")) {
+            return Integer.parseInt(size.substring(0, size.length() - 1)) << 20;
+        }
+        if (size.endsWith("K")) {
+            return Integer.parseInt(size.substring(0, size.length() - 1)) << 10;
+        }
+        return Integer.parseInt(size);
+    }
+
+    // Returns a program of exactly size commands with the given shape
+    public static String generate(String shape, int size) {
+        StringBuilder sb = new StringBuilder(size);
+        Random random = new Random(size);
+        switch (shape) {
+            case "nesting":
+                generateNesting(sb, size);
+                break;
+            case "simpleloops":
+                generateSimpleLoops(sb, size, random);
+                break;
+            case "scanchains":
+                generateScanChains(sb, size, random);
+                break;
+            case "straightline":
+                generateStraightLine(sb, size, random);
+                break;
+            default:
+                throw new RuntimeException("Unknown program shape: " + shape);
+        }
+        // Pad to the exact size with moves that cancel out
+        while (sb.length() + 2 <= size) {
+            sb.append("><");
+        }
+        if (sb.length() < size) {
+            sb.append('+');
+        }
+        return sb.toString();
+    }
+
+    // Loops nested as deep as the tape allows, each entered exactly once:
+    // >+[>+[ ... -]<-]<  uses one cell per level and leaves them all at zero
+    private static void generateNesting(StringBuilder sb, int size) {
+        while (true) {
+            int depth = Math.min((size - sb.length()) / 6, 10000);
+            if (depth == 0) {
+                return;
+            }
+            for (int level = 0; level < depth; level++) {
+                sb.append(">+[");
+            }
+            for (int level = 0; level < depth; level++) {
+                sb.append("-]<");
+            }
+        }
+    }
+
+    // Thousands of innermost loops that only add and move: copies, multiplies and clears
+    private static void generateSimpleLoops(StringBuilder sb, int size, Random random) {
+        while (true) {
+            StringBuilder block = new StringBuilder();
+            block.append("+".repeat(1 + random.nextInt(8)));
+            block.append("[->");
+            block.append("+".repeat(1 + random.nextInt(5)));
+            block.append(">");
+            block.append("-".repeat(1 + random.nextInt(3)));
+            block.append("<<]");
+            block.append(">[-<+>]>[-]<<[-]");
+            if (sb.length() + block.length() > size) {
+                return;
+            }
+            sb.append(block);
+        }
+    }
+
+    // Runs of non-zero cells walked by stride-1 or stride-2 scan loops, then cleared:
+    // >+>+>+>  <[<]  >[>]  <[[-]<]
+    private static void generateScanChains(StringBuilder sb, int size, Random random) {
+        while (true) {
+            int length = 1 + random.nextInt(64);
+            StringBuilder block = new StringBuilder();
+            if (random.nextBoolean()) {
+                block.append(">").append("+>".repeat(length));
+                block.append("<[<]>[>]<[[-]<]");
+            } else {
+                block.append(">>").append("+>>".repeat(length));
+                block.append("<<[<<]>>[>>]<<[[-]<<]");
+            }
+            if (sb.length() + block.length() > size) {
+                return;
+            }
+            sb.append(block);
+        }
+    }
+
+    // Long loop-free blocks of random adds and moves within 64 cells, with an occasional output
+    private static void generateStraightLine(StringBuilder sb, int size, Random random) {
+        int pointer = 0;
+        while (sb.length() + 64 < size) {
+            int command = random.nextInt(100);
+            if (command < 40) {
+                sb.append('+');
+            } else if (command < 70) {
+                sb.append('-');
+            } else if (command < 85 && pointer < 63) {
+                sb.append('>');
+                pointer++;
+            } else if (command < 99 && pointer > 0) {
+                sb.append('<');
+                pointer--;
+            } else if (command == 99 && random.nextInt(100) == 0) {
+                sb.append('.');
+            }
+        }
+        sb.append("<".repeat(pointer));
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.*;
+import java.util.function.Function;
+
+// Intermediate representation shared by the compilers, the optimization passes and the code generators.
+// A program is a List<Node>; loops own the list of their body nodes. Every node remembers the position
+// of the command it was built from in the cleaned code.
+public class BFIR {
+
+    public abstract static class Node {
+        public int position;
+    }
+
+    // tape[pointer + offset] += delta
+    public static class Add extends Node {
+        public int offset;
+        public int delta;
+
+        public Add(int position, int offset, int delta) {
+            this.position = position;
+            this.offset = offset;
+            this.delta = delta;
+        }
+    }
+
+    // pointer += delta
+    public static class Move extends Node {
+        public int delta;
+
+        public Move(int position, int delta) {
+            this.position = position;
+            this.delta = delta;
+        }
+    }
+
+    // putchar(tape[pointer + offset])
+    public static class Output extends Node {
+        public int offset;
+
+        public Output(int position, int offset) {
+            this.position = position;
+            this.offset = offset;
+        }
+    }
+
+    // putchar of values[0 ... length - 1], bytes known at compile time
+    public static class ConstantOutput extends Node {
+        public byte[] values;
+        public int length;
+
+        public ConstantOutput(int position, byte[] values, int length) {
+            this.position = position;
+            this.values = values;
+            this.length = length;
+        }
+    }
+
+    // tape[pointer + offset] = getchar()
+    public static class Input extends Node {
+        public int offset;
+
+        public Input(int position, int offset) {
+            this.position = position;
+            this.offset = offset;
+        }
+    }
+
+    // while (tape[pointer] != 0) { body }
+    public static class Loop extends Node {
+        public List<Node> body;
+
+        public Loop(int position, List<Node> body) {
+            this.position = position;
+            this.body = body;
+        }
+    }
+
+    // A simple loop summarized by its effect per iteration: the start cell changes by counterDelta,
+    // which is odd, and every other cell at pointer + offset by pointerEffects.get(offset). Written
+    // 'G' in the old string form.
+    public static class MultiplyLoop extends Node {
+        public int counterDelta;
+        public TreeMap<Integer, Integer> pointerEffects;
+
+        public MultiplyLoop(int position, int counterDelta, TreeMap<Integer, Integer> pointerEffects) {
+            this.position = position;
+            this.counterDelta = counterDelta;
+            this.pointerEffects = pointerEffects;
+        }
+
+        // The loop runs tape[pointer] * tripCountFactor() times, mod 256: it stops after n iterations
+        // when tape[pointer] + n * counterDelta = 0, so n = -tape[pointer] / counterDelta. Dividing by
+        // an odd number mod 256 is multiplying by its inverse. Returned as a signed byte, so it is 1
+        // for counterDelta -1 and -1 for counterDelta 1.
+        public int tripCountFactor() {
+            // Newton's iteration doubles the correct low bits of the inverse; an odd number is its own
+            // inverse mod 8, so two steps reach 12 bits
+            int inverse = counterDelta;
+            for (int i = 0; i < 2; i++) {
+                inverse *= 2 - counterDelta * inverse;
+            }
+            return (byte) -inverse;
+        }
+    }
+
+    // while (tape[pointer] != 0) { pointer += stride }. Written 'R' or 'L' in the old string form.
+    public static class ScanLoop extends Node {
+        public int stride;
+
+        public ScanLoop(int position, int stride) {
+            this.position = position;
+            this.stride = stride;
+        }
+    }
+
+    // tape[pointer + offset ... pointer + offset + length - 1] = value. Replaces a row of clear
+    // loops such as [-]>[-]>[-]>[-], each optionally followed by the same constant add.
+    public static class Fill extends Node {
+        public int offset;
+        public int length;
+        public int value;
+
+        public Fill(int position, int offset, int length, int value) {
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+            this.value = value;
+        }
+    }
+
+    // Moves the cells tape[pointer + offset ... pointer + offset + length - 1] shift (1 or -1) cells
+    // over. The cell at the leading edge is added to its neighbour outside the range and the cell at
+    // the trailing edge becomes zero. Replaces a row of [-<+>] loops walking right (shift -1) or of
+    // [->+<] loops walking left (shift 1).
+    public static class ShiftRange extends Node {
+        public int offset;
+        public int length;
+        public int shift;
+
+        public ShiftRange(int position, int offset, int length, int shift) {
+            this.position = position;
+            this.offset = offset;
+            this.length = length;
+            this.shift = shift;
+        }
+    }
+
+    // Builds the IR for cleaned code, one node per command
+    public static List<Node> parse(String bfCode) {
+        return parse(bfCode, 0);
+    }
+
+    // The same for a segment of the cleaned code that starts at position base
+    public static List<Node> parse(String bfCode, int base) {
+        List<Node> program = new ArrayList<>();
+        List<Node> current = program;
+        Deque<List<Node>> openBodies = new ArrayDeque<>();
+        Deque<Integer> openPositions = new ArrayDeque<>();
+
+        for (int i = base; i < base + bfCode.length(); i++) {
+            char c = bfCode.charAt(i - base);
+            switch (c) {
+                case '+':
+                    current.add(new Add(i, 0, 1));
+                    break;
+                case '-':
+                    current.add(new Add(i, 0, -1));
+                    break;
+                case '>':
+                    current.add(new Move(i, 1));
+                    break;
+                case '<':
+                    current.add(new Move(i, -1));
+                    break;
+                case '.':
+                    current.add(new Output(i, 0));
+                    break;
+                case ',':
+                    current.add(new Input(i, 0));
+                    break;
+                case '[':
+                    Loop loop = new Loop(i, new ArrayList<>());
+                    current.add(loop);
+                    openBodies.push(current);
+                    openPositions.push(i);
+                    current = loop.body;
+                    break;
+                case ']':
+                    if (openBodies.isEmpty()) {
+                        throw new RuntimeException("Unmatched ']' at position " + i);
+                    }
+                    current = openBodies.pop();
+                    openPositions.pop();
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!openBodies.isEmpty()) {
+            throw new RuntimeException("Unmatched '[' at position " + openPositions.peek());
+        }
+        return program;
+    }
+
+    // Replaces every Loop in the program, innermost first, by rewrite.apply(loop). The body of a loop
+    // is rewritten before the loop itself is offered. Runs in time linear in the number of nodes and
+    // without recursion, so deeply nested programs do not exhaust the Java stack.
+    public static void rewriteLoops(List<Node> program, Function<Loop, Node> rewrite) {
+        List<List<Node>> lists = new ArrayList<>();
+        int[] indices = new int[16];
+        lists.add(program);
+        int depth = 0;
+        while (true) {
+            List<Node> list = lists.get(depth);
+            int i = indices[depth];
+            if (i < list.size()) {
+                Node node = list.get(i);
+                if (node instanceof Loop) {
+                    depth++;
+                    if (depth == indices.length) {
+                        indices = Arrays.copyOf(indices, indices.length * 2);
+                    }
+                    if (depth == lists.size()) {
+                        lists.add(((Loop) node).body);
+                    } else {
+                        lists.set(depth, ((Loop) node).body);
+                    }
+                    indices[depth] = 0;
+                    continue;
+                }
+                indices[depth]++;
+            } else {
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+                List<Node> parent = lists.get(depth);
+                int parentIndex = indices[depth];
+                parent.set(parentIndex, rewrite.apply((Loop) parent.get(parentIndex)));
+                indices[depth]++;
+            }
+        }
+    }
+}
@@ -2,23 +2,41 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Stack;
 
 public class BFInterpreter {
     public static String langCommands = "><+-.,[]";
+
+    // Opcodes of the pre-decoded instruction array used by the fast engine
+    public static final byte OP_ADD = 0;
+    public static final byte OP_MOVE = 1;
+    public static final byte OP_OUT = 2;
+    public static final byte OP_IN = 3;
+    public static final byte OP_JZ = 4;
+    public static final byte OP_JNZ = 5;
+    public static final byte OP_CLEAR = 6;
+
     public static void main(String[] args) {
-        if (args.length == 1){
+        if (args.length == 1) {
             System.out.println("---> Interpreter: Running " + args[0] + "\n");
-            run(args[0]);
+            run(args[0], false);
+        } else if (args.length == 2 && args[1].equals("--reference")) {
+            System.out.println("---> Interpreter (reference mode): Running " + args[0] + "\n");
+            run(args[0], true);
         }
         else {
-            System.out.println("Usage: java BFInterpreter <bf src file path>");
+            System.out.println("Usage: java BFInterpreter <bf src file path> [--reference]");
         }
     }
 
     public static void run(String bfSrcFilename) {
+        run(bfSrcFilename, false);
+    }
+
+    public static void run(String bfSrcFilename, boolean reference) {
         StringBuilder srcCode = new StringBuilder();
         try {
             BufferedReader fileReader = new BufferedReader(new FileReader(bfSrcFilename));
@@ -35,9 +53,15 @@ public class BFInterpreter {
             throw new RuntimeException("BF source code is empty.");
         }
         StringBuilder cleanedCode = clean_code(srcCode);
-        HashMap<Integer, Integer> braceMap = build_brace_map(cleanedCode);
-        // System.out.println("len of code: " + cleanedCode.length());
-        interpreter_loop(cleanedCode, braceMap);
+        if (reference) {
+            // The original char-by-char loop, kept to cross-check the fast engine
+            HashMap<Integer, Integer> braceMap = build_brace_map(cleanedCode);
+            // System.out.println("len of code: " + cleanedCode.length());
+            interpreter_loop(cleanedCode, braceMap);
+        } else {
+            DecodedProgram program = decode(cleanedCode);
+            decoded_loop(program);
+        }
     }
 
     public static StringBuilder clean_code(StringBuilder code) {
@@ -133,4 +157,176 @@ public class BFInterpreter {
         }
         System.out.println("\n---> Interpreter: Normal Execution\n");
     }
-}
\ No newline at end of file
+
+    // Cleaned code decoded once into parallel primitive arrays: ops[i] is the opcode and
+    // args[i] its operand (run length for ADD/MOVE, jump target for JZ/JNZ)
+    public static class DecodedProgram {
+        public byte[] ops;
+        public int[] args;
+        public int length;
+
+        public DecodedProgram(byte[] ops, int[] args, int length) {
+            this.ops = ops;
+            this.args = args;
+            this.length = length;
+        }
+    }
+
+    public static DecodedProgram decode(StringBuilder code) {
+        byte[] ops = new byte[code.length()];
+        int[] args = new int[code.length()];
+        int[] openStack = new int[code.length()];
+        int stackTop = 0;
+        int n = 0;
+        int i = 0;
+        while (i < code.length()) {
+            char c = code.charAt(i);
+            switch (c) {
+                case '+':
+                case '-': {
+                    int delta = 0;
+                    while (i < code.length() && (code.charAt(i) == '+' || code.charAt(i) == '-')) {
+                        delta += code.charAt(i) == '+' ? 1 : -1;
+                        i++;
+                    }
+                    if ((delta & 0xFF) != 0) {
+                        ops[n] = OP_ADD;
+                        args[n] = delta & 0xFF;
+                        n++;
+                    }
+                    continue;
+                }
+                case '>':
+                case '<': {
+                    // Only moves in one direction are folded: a run left then stops at index 0 on the
+                    // same step as in the reference loop, and a run right never reaches it
+                    int delta = 0;
+                    while (i < code.length() && code.charAt(i) == c) {
+                        delta += c == '>' ? 1 : -1;
+                        i++;
+                    }
+                    ops[n] = OP_MOVE;
+                    args[n] = delta;
+                    n++;
+                    continue;
+                }
+                case '.':
+                    ops[n++] = OP_OUT;
+                    break;
+                case ',':
+                    ops[n++] = OP_IN;
+                    break;
+                case '[':
+                    if (i + 2 < code.length() && (code.charAt(i + 1) == '-' || code.charAt(i + 1) == '+') && code.charAt(i + 2) == ']') {
+                        // [-] and [+] always leave the cell at zero
+                        ops[n++] = OP_CLEAR;
+                        i += 3;
+                        continue;
+                    }
+                    openStack[stackTop++] = n;
+                    ops[n++] = OP_JZ;
+                    break;
+                case ']':
+                    if (stackTop == 0) {
+                        throw new RuntimeException("Unmatched ']' at position " + i);
+                    }
+                    int matchingBegin = openStack[--stackTop];
+                    // Both jumps land on the instruction after their partner
+                    args[matchingBegin] = n + 1;
+                    args[n] = matchingBegin + 1;
+                    ops[n++] = OP_JNZ;
+                    break;
+                default:
+                    break;
+            }
+            i++;
+        }
+        if (stackTop != 0) {
+            throw new RuntimeException("Unmatched '[' in BF source code.");
+        }
+        return new DecodedProgram(ops, args, n);
+    }
+
+    public static void decoded_loop(DecodedProgram program) {
+        byte[] ops = program.ops;
+        int[] args = program.args;
+        int length = program.length;
+        byte[] tape = new byte[1 << 16];
+        byte[] outBuf = new byte[1 << 13];
+        int outLen = 0;
+        byte[] inBuf = new byte[1 << 13];
+        int inPos = 0;
+        int inLen = 0;
+        int progCounter = 0;
+        int head = 0;
+        while (progCounter < length) {
+            switch (ops[progCounter]) {
+                case OP_ADD:
+                    tape[head] += (byte) args[progCounter];
+                    break;
+                case OP_MOVE:
+                    head += args[progCounter];
+                    if (head < 0) {
+                        // A run left, so the reference loop would print one notice per step past
+                        // index 0 and stay there
+                        System.out.write(outBuf, 0, outLen);
+                        outLen = 0;
+                        for (; head < 0; head++) {
+                            System.out.println("Your BF program tried to move left on the tape from index 0! We set the pointer to 0 and move on.");
+                        }
+                    } else if (head >= tape.length) {
+                        tape = Arrays.copyOf(tape, Math.max(tape.length * 2, head + 1));
+                    }
+                    break;
+                case OP_OUT:
+                    if (outLen == outBuf.length) {
+                        System.out.write(outBuf, 0, outLen);
+                        outLen = 0;
+                    }
+                    outBuf[outLen++] = tape[head];
+                    break;
+                case OP_IN:
+                    if (inPos == inLen) {
+                        // Flush pending output first so prompts show up before we block
+                        System.out.write(outBuf, 0, outLen);
+                        System.out.flush();
+                        outLen = 0;
+                        try {
+                            inLen = System.in.read(inBuf);
+                        } catch (IOException e) {
+                            throw new RuntimeException("Input value caused: " + e.getMessage());
+                        }
+                        inPos = 0;
+                    }
+                    if (inLen <= 0) {
+                        // EOF stores 255, the same byte the compiled programs keep from getchar's -1
+                        inLen = 0;
+                        tape[head] = (byte) -1;
+                    } else {
+                        tape[head] = inBuf[inPos++];
+                    }
+                    break;
+                case OP_JZ:
+                    if (tape[head] == 0) {
+                        progCounter = args[progCounter];
+                        continue;
+                    }
+                    break;
+                case OP_JNZ:
+                    if (tape[head] != 0) {
+                        progCounter = args[progCounter];
+                        continue;
+                    }
+                    break;
+                case OP_CLEAR:
+                    tape[head] = 0;
+                    break;
+                default:
+                    break;
+            }
+            progCounter = progCounter + 1;
+        }
+        System.out.write(outBuf, 0, outLen);
+        System.out.println("\n---> Interpreter: Normal Execution\n");
+    }
+}
@@ -0,0 +1,327 @@
+import java.util.*;
+import java.util.function.IntUnaryOperator;
+import java.util.function.UnaryOperator;
+
+// Optimization passes over the BFIR and the pass manager that runs them. Each pass visits every
+// node a constant number of times.
+public class BFPasses {
+
+    public static class PassManager {
+        private final List<String> names = new ArrayList<>();
+        private final List<UnaryOperator<List<BFIR.Node>>> passes = new ArrayList<>();
+        public Map<String, Long> timingsNanos = new LinkedHashMap<>();
+
+        public PassManager add(String name, UnaryOperator<List<BFIR.Node>> pass) {
+            names.add(name);
+            passes.add(pass);
+            return this;
+        }
+
+        public List<BFIR.Node> run(List<BFIR.Node> program) {
+            for (int i = 0; i < passes.size(); i++) {
+                long start = System.nanoTime();
+                program = passes.get(i).apply(program);
+                // Segments may run the passes on several threads at once
+                synchronized (timingsNanos) {
+                    timingsNanos.merge(names.get(i), System.nanoTime() - start, Long::sum);
+                }
+            }
+            return program;
+        }
+    }
+
+    // The pipeline selected by the command line flags of the compilers. Runs are always folded; scan
+    // loops are recognized next so that a body of only moves becomes a ScanLoop rather than being
+    // offered to the simple loop pass.
+    public static PassManager forFlags(boolean optSl, boolean optScan) {
+        PassManager passManager = new PassManager();
+        passManager.add("foldruns", BFPasses::foldRuns);
+        if (optScan) {
+            passManager.add("scanloops", BFPasses::optimizeScanLoops);
+        }
+        if (optSl) {
+            passManager.add("simpleloops", BFPasses::optimizeSimpleLoops);
+            passManager.add("ranges", BFPasses::optimizeRanges);
+        }
+        return passManager;
+    }
+
+    // Folds every straight-line block: consecutive adds to the same cell become one Add, and the
+    // pointer moves are deferred into the offsets of the adds and I/O that follow them, so each block
+    // moves the pointer at most once, right before the next loop or at the end of the block.
+    // >>>>+++++<< becomes Add(4, 5) Move(2).
+    public static List<BFIR.Node> foldRuns(List<BFIR.Node> program) {
+        BFIR.rewriteLoops(program, loop -> {
+            loop.body = foldBlock(loop.body);
+            return loop;
+        });
+        return foldBlock(program);
+    }
+
+    private static List<BFIR.Node> foldBlock(List<BFIR.Node> block) {
+        List<BFIR.Node> folded = new ArrayList<>();
+        // The latest Add to each cell since the last I/O, relative to the pointer at the block start
+        Map<Integer, BFIR.Add> pendingAdds = new HashMap<>();
+        int virtualOffset = 0;
+        int movePosition = -1;
+
+        for (BFIR.Node node : block) {
+            if (node instanceof BFIR.Move) {
+                if (movePosition < 0) {
+                    movePosition = node.position;
+                }
+                virtualOffset += ((BFIR.Move) node).delta;
+            } else if (node instanceof BFIR.Add) {
+                BFIR.Add add = (BFIR.Add) node;
+                int offset = virtualOffset + add.offset;
+                BFIR.Add pending = pendingAdds.get(offset);
+                if (pending != null) {
+                    pending.delta += add.delta;
+                } else {
+                    pending = new BFIR.Add(add.position, offset, add.delta);
+                    pendingAdds.put(offset, pending);
+                    folded.add(pending);
+                }
+            } else if (node instanceof BFIR.Output) {
+                // Later adds must not be moved in front of the output that reads the cell
+                pendingAdds.clear();
+                folded.add(new BFIR.Output(node.position, virtualOffset + ((BFIR.Output) node).offset));
+            } else if (node instanceof BFIR.Input) {
+                pendingAdds.clear();
+                folded.add(new BFIR.Input(node.position, virtualOffset + ((BFIR.Input) node).offset));
+            } else {
+                // Loops test and work relative to the real pointer
+                if (virtualOffset != 0) {
+                    folded.add(new BFIR.Move(movePosition, virtualOffset));
+                }
+                pendingAdds.clear();
+                virtualOffset = 0;
+                movePosition = -1;
+                folded.add(node);
+            }
+        }
+        if (virtualOffset != 0) {
+            folded.add(new BFIR.Move(movePosition, virtualOffset));
+        }
+        folded.removeIf(node -> node instanceof BFIR.Add && (((BFIR.Add) node).delta & 0xFF) == 0);
+        return folded;
+    }
+
+    public static class ScanLoopResult {
+        public boolean isOptimizable;
+        public int netDirection;
+        public int stride;
+
+        public ScanLoopResult(boolean isOptimizable, int netDirection, int stride) {
+            this.isOptimizable = isOptimizable;
+            this.netDirection = netDirection;
+            this.stride = stride;
+        }
+    }
+
+    // A scan loop has a body of pointer moves only, with a net movement that is a power of two
+    public static ScanLoopResult isOptimizableScanLoop(BFIR.Loop loop) {
+        int pointer = 0;
+
+        for (BFIR.Node node : loop.body) {
+            if (node instanceof BFIR.Move) {
+                pointer += ((BFIR.Move) node).delta;
+            } else {
+                return new ScanLoopResult(false, 0, 0);
+            }
+        }
+
+        if (pointer == 0) {
+            return new ScanLoopResult(false, 0, 0);
+        }
+
+        int absPointer = Math.abs(pointer);
+        if ((absPointer & (absPointer - 1)) != 0) {
+            return new ScanLoopResult(false, 0, 0);
+        }
+
+        int netDirection = pointer > 0 ? 1 : -1;
+        return new ScanLoopResult(true, netDirection, pointer);
+    }
+
+    public static List<BFIR.Node> optimizeScanLoops(List<BFIR.Node> program) {
+        BFIR.rewriteLoops(program, loop -> {
+            ScanLoopResult result = isOptimizableScanLoop(loop);
+            if (result.isOptimizable) {
+                return new BFIR.ScanLoop(loop.position, result.stride);
+            }
+            return loop;
+        });
+        return program;
+    }
+
+    // A simple loop only adds to cells and moves the pointer, returns to where it started and changes
+    // the start cell by an odd amount per iteration, so its trip count is known on entry. A cell may be
+    // added to several times in the body; the adds are summed.
+    public static boolean isSimple(BFIR.Loop loop) {
+        int inBodyPointer = 0;
+        int startCellChange = 0;
+
+        for (BFIR.Node node : loop.body) {
+            if (node instanceof BFIR.Move) {
+                inBodyPointer += ((BFIR.Move) node).delta;
+            } else if (node instanceof BFIR.Add) {
+                BFIR.Add add = (BFIR.Add) node;
+                if (inBodyPointer + add.offset == 0) {
+                    startCellChange += add.delta;
+                }
+            } else {
+                // I/O, inner loops and already summarized loops
+                return false;
+            }
+        }
+
+        // An even step can miss zero and loop forever, so only odd steps have a trip count for every value
+        return inBodyPointer == 0 && (startCellChange & 1) != 0;
+    }
+
+    public static BFIR.MultiplyLoop optimizeLoop(BFIR.Loop loop) {
+        int pointerPosition = 0;
+        TreeMap<Integer, Integer> pointerEffects = new TreeMap<>();
+
+        for (BFIR.Node node : loop.body) {
+            if (node instanceof BFIR.Move) {
+                pointerPosition += ((BFIR.Move) node).delta;
+            } else if (node instanceof BFIR.Add) {
+                BFIR.Add add = (BFIR.Add) node;
+                pointerEffects.merge(pointerPosition + add.offset, add.delta, Integer::sum);
+            }
+        }
+
+        int counterDelta = pointerEffects.getOrDefault(0, 0);
+        pointerEffects.remove(0);
+        pointerEffects.values().removeIf(effect -> effect % 256 == 0);
+        return new BFIR.MultiplyLoop(loop.position, counterDelta, pointerEffects);
+    }
+
+    public static List<BFIR.Node> optimizeSimpleLoops(List<BFIR.Node> program) {
+        BFIR.rewriteLoops(program, loop -> isSimple(loop) ? optimizeLoop(loop) : loop);
+        return program;
+    }
+
+    // Rows shorter than this are left to the per-cell code
+    public static final int MIN_RANGE_LENGTH = 4;
+
+    // Lowers rows of adjacent clear loops and of adjacent single-cell move loops, as summarized by
+    // optimizeSimpleLoops, to Fill and ShiftRange nodes
+    public static List<BFIR.Node> optimizeRanges(List<BFIR.Node> program) {
+        BFIR.rewriteLoops(program, loop -> {
+            loop.body = rangeBlock(loop.body);
+            return loop;
+        });
+        return rangeBlock(program);
+    }
+
+    private static List<BFIR.Node> rangeBlock(List<BFIR.Node> block) {
+        List<BFIR.Node> result = new ArrayList<>();
+        int i = 0;
+        while (i < block.size()) {
+            int fillEnd = matchFillRow(block, i);
+            int shiftEnd = fillEnd < 0 ? matchShiftRow(block, i) : -1;
+            if (fillEnd < 0 && shiftEnd < 0) {
+                result.add(block.get(i));
+                i++;
+                continue;
+            }
+
+            int end = fillEnd >= 0 ? fillEnd : shiftEnd;
+            int step = 0;
+            int length = 1;
+            for (int j = i; j < end; j++) {
+                if (block.get(j) instanceof BFIR.Move) {
+                    step = ((BFIR.Move) block.get(j)).delta;
+                    length++;
+                }
+            }
+            int low = Math.min(0, (length - 1) * step);
+            BFIR.Node head = block.get(i);
+            if (fillEnd >= 0) {
+                result.add(new BFIR.Fill(head.position, low, length, fillValue(block, i)));
+            } else {
+                result.add(new BFIR.ShiftRange(head.position, low, length, -step));
+            }
+            // The pointer ends on the last unit, as it did before
+            result.add(new BFIR.Move(head.position, (length - 1) * step));
+            i = end;
+        }
+        return result;
+    }
+
+    // [-] or [-]+++: a clear loop, optionally followed by a constant add to the same cell. Returns the
+    // index after the unit, or -1.
+    private static int matchFillUnit(List<BFIR.Node> block, int i) {
+        if (i >= block.size() || !(block.get(i) instanceof BFIR.MultiplyLoop) || !((BFIR.MultiplyLoop) block.get(i)).pointerEffects.isEmpty()) {
+            return -1;
+        }
+        if (i + 1 < block.size() && block.get(i + 1) instanceof BFIR.Add && ((BFIR.Add) block.get(i + 1)).offset == 0) {
+            return i + 2;
+        }
+        return i + 1;
+    }
+
+    private static int fillValue(List<BFIR.Node> block, int unit) {
+        BFIR.Node next = unit + 1 < block.size() ? block.get(unit + 1) : null;
+        return next instanceof BFIR.Add && ((BFIR.Add) next).offset == 0 ? ((BFIR.Add) next).delta & 0xFF : 0;
+    }
+
+    private static int matchFillRow(List<BFIR.Node> block, int i) {
+        if (matchFillUnit(block, i) < 0) {
+            return -1;
+        }
+        int value = fillValue(block, i);
+        return matchRow(block, i, 0, j -> matchFillUnit(block, j) >= 0 && fillValue(block, j) == value ? matchFillUnit(block, j) : -1);
+    }
+
+    // [-<+>] or [->+<]: a loop that moves the start cell into the neighbour at target
+    private static int matchShiftUnit(List<BFIR.Node> block, int i, int target) {
+        if (i >= block.size() || !(block.get(i) instanceof BFIR.MultiplyLoop)) {
+            return -1;
+        }
+        BFIR.MultiplyLoop loop = (BFIR.MultiplyLoop) block.get(i);
+        if (loop.tripCountFactor() != 1 || loop.pointerEffects.size() != 1 || !loop.pointerEffects.containsKey(target)
+                || (loop.pointerEffects.get(target) & 0xFF) != 1) {
+            return -1;
+        }
+        return i + 1;
+    }
+
+    // Each unit must move its cell onto the cell the previous unit emptied, so the row walks away from
+    // the target: a row of [-<+>] walks right
+    private static int matchShiftRow(List<BFIR.Node> block, int i) {
+        for (int target = -1; target <= 1; target += 2) {
+            int unitTarget = target;
+            if (matchShiftUnit(block, i, unitTarget) >= 0) {
+                return matchRow(block, i, -unitTarget, j -> matchShiftUnit(block, j, unitTarget));
+            }
+        }
+        return -1;
+    }
+
+    // Matches a row of units starting at start, each after a move of one cell in the same direction,
+    // or in the direction step if it is not 0. matchUnit returns the index after the unit at its
+    // argument, or -1. Returns the index after the row, or -1 if the row is shorter than
+    // MIN_RANGE_LENGTH.
+    private static int matchRow(List<BFIR.Node> block, int start, int step, IntUnaryOperator matchUnit) {
+        int end = matchUnit.applyAsInt(start);
+        int length = 1;
+        while (end < block.size() && block.get(end) instanceof BFIR.Move) {
+            int delta = ((BFIR.Move) block.get(end)).delta;
+            if ((delta != 1 && delta != -1) || (step != 0 && delta != step)) {
+                break;
+            }
+            int next = matchUnit.applyAsInt(end + 1);
+            if (next < 0) {
+                break;
+            }
+            step = delta;
+            end = next;
+            length++;
+        }
+        return length >= MIN_RANGE_LENGTH ? end : -1;
+    }
+}
@@ -0,0 +1,175 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.function.Supplier;
+
+// Compile-time scalability harness. For every generated program shape and size it runs the compiler
+// phases one by one and prints a CSV row per phase with wall time, bytes allocated, allocation rate,
+// peak heap and the growth exponent against the previous size (1.0 is linear, 2.0 quadratic).
+public class BFScaleBench {
+
+    private static final String[] PHASES = {"cleanCode", "parse", "foldRuns", "optimizeScanLoops", "optimizeSimpleLoops", "codegen", "partialEvaluate", "bfToX86_64"};
+
+    public static void main(String[] args) {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size : BFGenerator.SIZES) {
+            sizes.add(size);
+        }
+        List<String> shapes = new ArrayList<>(Arrays.asList(BFGenerator.SHAPES));
+        double budgetSeconds = 120;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--sizes") && i + 1 < args.length) {
+                sizes.clear();
+                for (String size : args[++i].split(",")) {
+                    sizes.add(BFGenerator.parseSize(size));
+                }
+            } else if (args[i].equals("--shapes") && i + 1 < args.length) {
+                shapes = Arrays.asList(args[++i].split(","));
+            } else if (args[i].equals("--budget") && i + 1 < args.length) {
+                budgetSeconds = Double.parseDouble(args[++i]);
+            } else {
+                System.out.println("Usage: java BFScaleBench [--sizes 1K,100K,10M,100M] [--shapes " + String.join(",", BFGenerator.SHAPES) + "] [--budget <seconds per phase>]");
+                return;
+            }
+        }
+
+        // One unreported round on small inputs so the first measured size is not all interpreter time
+        for (String shape : shapes) {
+            runPhases(shape, 1 << 10, null, budgetSeconds);
+        }
+
+        System.out.println("shape,size,phase,status,wall_ms,alloc_mb,alloc_mb_per_s,peak_heap_mb,growth");
+        for (String shape : shapes) {
+            Map<String, Measurement> previous = new HashMap<>();
+            for (int size : sizes) {
+                runPhases(shape, size, previous, budgetSeconds);
+            }
+        }
+    }
+
+    public static class Measurement {
+        public String status = "ok";
+        public int size;
+        public long wallNanos;
+        public long allocatedBytes;
+        public long peakHeapBytes;
+        public double growth = Double.NaN;
+    }
+
+    // Runs the phases in compiler order on one generated program. A phase is skipped when its input
+    // phase did not finish, or when the previous size projects it past the time budget.
+    private static void runPhases(String shape, int size, Map<String, Measurement> previous, double budgetSeconds) {
+        String[] srcBfCode = {BFGenerator.generate(shape, size)};
+        String[] bfCode = new String[1];
+        Object[] program = new Object[1];
+
+        for (String phase : PHASES) {
+            Supplier<Object> work;
+            switch (phase) {
+                case "cleanCode":
+                    work = () -> bfCode[0] = BFCompiler.cleanCode(srcBfCode[0]);
+                    break;
+                case "parse":
+                    work = bfCode[0] == null ? null : () -> program[0] = BFIR.parse(bfCode[0]);
+                    break;
+                case "foldRuns":
+                    work = program[0] == null ? null : () -> program[0] = BFPasses.foldRuns(nodes(program[0]));
+                    break;
+                case "optimizeScanLoops":
+                    work = program[0] == null ? null : () -> program[0] = BFPasses.optimizeScanLoops(nodes(program[0]));
+                    break;
+                case "optimizeSimpleLoops":
+                    work = program[0] == null ? null : () -> program[0] = BFPasses.optimizeSimpleLoops(nodes(program[0]));
+                    break;
+                case "codegen":
+                    work = program[0] == null ? null : () -> BFCodeGen.generate(nodes(program[0]));
+                    break;
+                case "partialEvaluate":
+                    work = bfCode[0] == null ? null : () -> BFCompilerPE.partialEvaluate(bfCode[0]);
+                    break;
+                default:
+                    work = () -> BFCompiler.bfToX86_64(srcBfCode[0], true, true);
+                    break;
+            }
+
+            Measurement last = previous == null ? null : previous.get(phase);
+            Measurement measurement;
+            if (work == null || (last != null && !last.status.equals("ok"))) {
+                measurement = new Measurement();
+                measurement.status = "skipped";
+            } else if (last != null && projectedSeconds(last, size) > budgetSeconds) {
+                measurement = new Measurement();
+                measurement.status = "over-budget";
+            } else {
+                measurement = measure(work);
+            }
+            measurement.size = size;
+
+            if (previous == null) {
+                continue;
+            }
+            if (last != null && last.status.equals("ok") && measurement.status.equals("ok") && last.wallNanos > 0) {
+                measurement.growth = Math.log((double) measurement.wallNanos / last.wallNanos) / Math.log((double) size / last.size);
+            }
+            previous.put(phase, measurement);
+            report(shape, size, phase, measurement);
+        }
+        // Let the big inputs of this size go before the next one is generated
+        srcBfCode[0] = null;
+        bfCode[0] = null;
+        program[0] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<BFIR.Node> nodes(Object program) {
+        return (List<BFIR.Node>) program;
+    }
+
+    // Linear extrapolation, or the measured growth exponent when the phase already grew faster
+    private static double projectedSeconds(Measurement last, int size) {
+        double exponent = Double.isNaN(last.growth) ? 1.0 : Math.max(1.0, last.growth);
+        return last.wallNanos / 1e9 * Math.pow((double) size / last.size, exponent);
+    }
+
+    private static Measurement measure(Supplier<Object> work) {
+        Measurement measurement = new Measurement();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+            }
+        }
+
+        System.gc();
+        for (MemoryPoolMXBean pool : heapPools) {
+            pool.resetPeakUsage();
+        }
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        try {
+            work.get();
+        } catch (OutOfMemoryError e) {
+            measurement.status = "oom";
+        } catch (StackOverflowError e) {
+            measurement.status = "stack-overflow";
+        }
+        measurement.wallNanos = System.nanoTime() - start;
+        measurement.allocatedBytes = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        for (MemoryPoolMXBean pool : heapPools) {
+            measurement.peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+        return measurement;
+    }
+
+    private static void report(String shape, int size, String phase, Measurement m) {
+        double wallMs = m.wallNanos / 1e6;
+        double allocMb = m.allocatedBytes / 1048576.0;
+        double allocRate = m.wallNanos > 0 ? allocMb / (m.wallNanos / 1e9) : 0;
+        System.out.println(String.format(Locale.ROOT, "%s,%s,%s,%s,%.3f,%.3f,%.1f,%.1f,%s",
+                shape, BFGenerator.sizeName(size), phase, m.status, wallMs, allocMb, allocRate,
+                m.peakHeapBytes / 1048576.0, Double.isNaN(m.growth) ? "" : String.format(Locale.ROOT, "%.2f", m.growth)));
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Lexer that reads a BF program in chunks and keeps only its eight commands, one byte each, so a
+// large source file is never held in memory whole. nextSegment hands the commands out in segments
+// that end between two top-level statements, and BFCodeGen parses, optimizes and emits one segment
+// before the next is read. A segment is as long as the outermost loop it contains, so memory grows
+// with the longest top-level loop rather than with the program.
+public class BFSource implements Closeable {
+
+    // Commands per segment, before moving on to the next cut
+    public static final int SEGMENT_LENGTH = 1 << 16;
+    // Past this a segment is cut anywhere at the top level, even where the cut changes the code
+    public static final int MAX_SEGMENT_LENGTH = 4 * SEGMENT_LENGTH;
+    private static final int CHUNK = 1 << 16;
+
+    private final InputStream in;
+    private final String code;
+    private int codeIndex;
+    private final byte[] chunk;
+
+    // Commands read but not handed out yet; position is the index of buffer[0] in the cleaned code
+    private byte[] buffer = new byte[CHUNK];
+    private int length;
+    private int position;
+    private int segmentPosition;
+    // Bracket depth and net pointer move at the top level after buffer[scanned - 1]
+    private int scanned;
+    private int depth;
+    private int topLevelMove;
+
+    // Where the '[' read so far are in the source, or null when not asked for
+    private final Locations locations;
+    // Bytes of the source read so far, and where the current line starts
+    private int offset;
+    private int line = 1;
+    private int lineStart;
+
+    public BFSource(InputStream in) {
+        this(in, false);
+    }
+
+    // With locate, the lexer also records where every '[' is in the source, for locations
+    public BFSource(InputStream in, boolean locate) {
+        this.in = in;
+        this.code = null;
+        this.chunk = new byte[CHUNK];
+        this.locations = locate ? new Locations() : null;
+    }
+
+    // The commands of source code already in memory, cleaned or not
+    public BFSource(String code) {
+        this(code, false);
+    }
+
+    // Offsets into code count chars, which are the bytes of the file when it was decoded as ISO-8859-1
+    public BFSource(String code, boolean locate) {
+        this.in = null;
+        this.code = code;
+        this.chunk = null;
+        this.locations = locate ? new Locations() : null;
+    }
+
+    // All of the cleaned code of a file, one byte per command, as the String cleanCode would return
+    public static String readAll(Path file) throws IOException {
+        try (BFSource source = new BFSource(Files.newInputStream(file))) {
+            while (source.fill()) {
+                // Keep reading
+            }
+            return source.cut(source.length);
+        }
+    }
+
+    // The cleaned code of the rest of the source, instead of segments
+    public String readCleanCode() {
+        try {
+            while (fill()) {
+                // Keep reading
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading the Brainfuck file: " + e.getMessage(), e);
+        }
+        return cut(length);
+    }
+
+    // Byte offset, line and column in the source of the commands of the cleaned code. Only '[' are
+    // recorded, as the loops are what the profile of BFCodeGen counts; another position gets the
+    // location of the closest '[' before it.
+    public static class Locations {
+        private int count;
+        private int[] positions = new int[256];
+        private int[] offsets = new int[256];
+        private int[] lines = new int[256];
+        private int[] columns = new int[256];
+
+        void add(int position, int offset, int line, int column) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+                columns = Arrays.copyOf(columns, count * 2);
+            }
+            positions[count] = position;
+            offsets[count] = offset;
+            lines[count] = line;
+            columns[count] = column;
+            count++;
+        }
+
+        // {offset, line, column} of the command at position in the cleaned code, lines and columns
+        // counting from 1, or {-1, 0, 0} before the first '['
+        public int[] locate(int position) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (positions[middle] <= position) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (high < 0) {
+                return new int[] {-1, 0, 0};
+            }
+            return new int[] {offsets[high], lines[high], columns[high]};
+        }
+    }
+
+    // The locations of the source read so far, or null without locate
+    public Locations locations() {
+        return locations;
+    }
+
+    // The cleaned code of the next segment, or null after the last one. An unmatched ']' is reported
+    // here; an unmatched '[' is left to BFIR.parse, which sees it in the last segment.
+    public String nextSegment() {
+        while (true) {
+            for (; scanned < length; scanned++) {
+                byte c = buffer[scanned];
+                if (depth == 0 && scanned >= SEGMENT_LENGTH && (c == '[' && isCleanCut() || scanned >= MAX_SEGMENT_LENGTH)) {
+                    return cut(scanned);
+                }
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    if (depth == 0) {
+                        throw new RuntimeException("Unmatched ']' at position " + (position + scanned));
+                    }
+                    depth--;
+                    topLevelMove = 0;
+                } else if (depth == 0 && (c == '>' || c == '<')) {
+                    topLevelMove += c == '>' ? 1 : -1;
+                }
+            }
+            try {
+                if (!fill()) {
+                    return length == 0 ? null : cut(length);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error reading the Brainfuck file: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // Position of the segment nextSegment returned last in the cleaned code
+    public int segmentPosition() {
+        return segmentPosition;
+    }
+
+    // Cutting in front of a top-level loop gives the same code as not cutting: foldRuns moves the
+    // pointer before every loop anyway, and the other passes work inside loops. The exception is a row
+    // of [-] or [-<+>] units for optimizeRanges, whose units are one cell apart, so a loop that starts
+    // one cell away from where the previous top-level loop ended is not cut from it.
+    private boolean isCleanCut() {
+        return topLevelMove != 1 && topLevelMove != -1;
+    }
+
+    private String cut(int end) {
+        String segment = new String(buffer, 0, end, StandardCharsets.ISO_8859_1);
+        System.arraycopy(buffer, end, buffer, 0, length - end);
+        length -= end;
+        scanned -= end;
+        segmentPosition = position;
+        position += end;
+        topLevelMove = 0;
+        return segment;
+    }
+
+    // Appends the commands of the next chunk of the source to the buffer. Returns false at the end.
+    private boolean fill() throws IOException {
+        int count;
+        if (in != null) {
+            count = in.read(chunk);
+            if (count < 0) {
+                return false;
+            }
+        } else {
+            count = Math.min(CHUNK, code.length() - codeIndex);
+            if (count == 0) {
+                return false;
+            }
+        }
+        if (buffer.length - length < count) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+        for (int i = 0; i < count; i++) {
+            int c = in != null ? chunk[i] : code.charAt(codeIndex + i);
+            if (locations != null) {
+                if (c == '[') {
+                    locations.add(position + length, offset + i, line, offset + i - lineStart + 1);
+                } else if (c == '\n') {
+                    line++;
+                    lineStart = offset + i + 1;
+                }
+            }
+            if (c == '.' || c == ',' || c == '[' || c == ']' || c == '<' || c == '>' || c == '+' || c == '-') {
+                buffer[length++] = (byte) c;
+            }
+        }
+        offset += count;
+        if (in == null) {
+            codeIndex += count;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+}
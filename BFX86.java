@@ -0,0 +1,1060 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+
+// Writes the x86-64 instructions BFCodeGen uses, either as GNU as text or as machine code. Machine code
+// goes into a relocatable ELF object with bf_main in .text, the data blocks in .rodata and relocations
+// for the calls into and the variables of bf_wrapper.c, so it links against bf_wrapper.o like the
+// assembled text would, without formatting the text or running as.
+public class BFX86 {
+
+    public static class Reg {
+        public final String name;
+        public final int code;
+        // Bytes for general purpose registers; 16 or 32 for vector registers
+        public final int size;
+
+        public Reg(String name, int code, int size) {
+            this.name = name;
+            this.code = code;
+            this.size = size;
+        }
+    }
+
+    public static final Reg RAX = new Reg("rax", 0, 8);
+    public static final Reg RCX = new Reg("rcx", 1, 8);
+    public static final Reg RDX = new Reg("rdx", 2, 8);
+    public static final Reg RBX = new Reg("rbx", 3, 8);
+    public static final Reg RSI = new Reg("rsi", 6, 8);
+    public static final Reg RDI = new Reg("rdi", 7, 8);
+    public static final Reg R12 = new Reg("r12", 12, 8);
+    public static final Reg R13 = new Reg("r13", 13, 8);
+    public static final Reg R14 = new Reg("r14", 14, 8);
+    public static final Reg R15 = new Reg("r15", 15, 8);
+    public static final Reg EAX = new Reg("eax", 0, 4);
+    public static final Reg ECX = new Reg("ecx", 1, 4);
+    public static final Reg EDX = new Reg("edx", 2, 4);
+    public static final Reg ESI = new Reg("esi", 6, 4);
+    public static final Reg EDI = new Reg("edi", 7, 4);
+    public static final Reg AX = new Reg("ax", 0, 2);
+    public static final Reg AL = new Reg("al", 0, 1);
+    public static final Reg CL = new Reg("cl", 1, 1);
+    public static final Reg XMM0 = new Reg("xmm0", 0, 16);
+    public static final Reg XMM1 = new Reg("xmm1", 1, 16);
+    public static final Reg YMM0 = new Reg("ymm0", 0, 32);
+    public static final Reg YMM1 = new Reg("ymm1", 1, 32);
+
+    // disp(base, index, scale), or symbol(%rip) when symbol is set. base may be null.
+    public static class Mem {
+        public final Reg base;
+        public final Reg index;
+        public final int scale;
+        public final int disp;
+        public final String symbol;
+
+        public Mem(Reg base, Reg index, int scale, int disp, String symbol) {
+            this.base = base;
+            this.index = index;
+            this.scale = scale;
+            this.disp = disp;
+            this.symbol = symbol;
+        }
+    }
+
+    public static Mem mem(Reg base, int disp) {
+        return new Mem(base, null, 1, disp, null);
+    }
+
+    public static Mem mem(Reg base, Reg index, int scale, int disp) {
+        return new Mem(base, index, scale, disp, null);
+    }
+
+    // A label of a data block, or a symbol of bf_wrapper.c
+    public static Mem rip(String symbol) {
+        return new Mem(null, null, 1, 0, symbol);
+    }
+
+    // Growable little-endian byte buffer
+    private static class Bytes {
+        byte[] data = new byte[1 << 12];
+        int length;
+
+        void u8(int value) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, length * 2);
+            }
+            data[length++] = (byte) value;
+        }
+
+        void u16(int value) {
+            u8(value);
+            u8(value >> 8);
+        }
+
+        void u32(int value) {
+            u16(value);
+            u16(value >> 16);
+        }
+
+        void u64(long value) {
+            u32((int) value);
+            u32((int) (value >> 32));
+        }
+
+        void bytes(byte[] values, int offset, int count) {
+            for (int i = 0; i < count; i++) {
+                u8(values[offset + i]);
+            }
+        }
+
+        void align(int alignment) {
+            while (length % alignment != 0) {
+                u8(0);
+            }
+        }
+    }
+
+    private static class Relocation {
+        int offset;
+        int type;
+        // Symbol of bf_wrapper.c, or null for an offset into .rodata
+        String symbol;
+        long addend;
+
+        Relocation(int offset, int type, String symbol, long addend) {
+            this.offset = offset;
+            this.type = type;
+            this.symbol = symbol;
+            this.addend = addend;
+        }
+    }
+
+    // A jump in the machine code: where the instruction starts, its condition (-1 for jmp), its target
+    // and whether it has a 32-bit displacement
+    private static class Jump {
+        int at;
+        int condition;
+        String label;
+        boolean near;
+        // Bytes the jump took when it was emitted
+        final int emitted;
+
+        Jump(int at, int condition, String label) {
+            this.at = at;
+            this.condition = condition;
+            this.label = label;
+            this.near = true;
+            this.emitted = length();
+        }
+
+        int length() {
+            return near ? (condition < 0 ? 5 : 6) : 2;
+        }
+    }
+
+    private static final int R_X86_64_PC32 = 2;
+    private static final int R_X86_64_PLT32 = 4;
+
+    // Text when writing assembly, null when writing machine code
+    private final StringBuilder text;
+    // Where the text goes once it is FLUSH_LENGTH long, or null to keep all of it for toString
+    private final Writer out;
+    private static final int FLUSH_LENGTH = 1 << 16;
+    private final Bytes code = new Bytes();
+    private final Bytes rodata = new Bytes();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> dataLabels = new HashMap<>();
+    private final List<Jump> jumps = new ArrayList<>();
+    private final List<Relocation> relocations = new ArrayList<>();
+    private String function;
+    private boolean relaxed;
+
+    public BFX86(boolean machineCode) {
+        this.text = machineCode ? null : new StringBuilder();
+        this.out = null;
+    }
+
+    // Text that is written to out as it is generated; flush writes the rest
+    public BFX86(Writer out) {
+        this.text = new StringBuilder();
+        this.out = out;
+    }
+
+    // ---- Directives ----
+
+    public void beginFunction(String name) {
+        function = name;
+        if (text != null) {
+            text.append("    .global ").append(name).append('\n');
+            text.append("    .section .text\n");
+            text.append(name).append(":\n");
+        }
+    }
+
+    // Marks the stack as not executable, which the linker otherwise warns about
+    public void endFunction() {
+        if (text != null) {
+            text.append("    .section .note.GNU-stack,\"\",@progbits\n");
+        }
+    }
+
+    public boolean isMachineCode() {
+        return text == null;
+    }
+
+    // Appends text written by another BFX86 in text mode
+    public void text(String other) {
+        text.append(other);
+        flushIfFull();
+    }
+
+    public void comment(String comment) {
+        if (text != null) {
+            text.append("    # ").append(comment).append('\n');
+        }
+    }
+
+    public void label(String name) {
+        if (text != null) {
+            text.append(name).append(":\n");
+            flushIfFull();
+            return;
+        }
+        if (labels.put(name, code.length) != null) {
+            throw new RuntimeException("Label defined twice: " + name);
+        }
+    }
+
+    // A block of read-only data under label, written with .ascii when ascii is set and .byte otherwise
+    public void data(String label, byte[] values, int offset, int length, boolean ascii) {
+        if (text == null) {
+            dataLabels.put(label, rodata.length);
+            rodata.bytes(values, offset, length);
+            return;
+        }
+        int line = ascii ? 64 : 16;
+        text.append("    .pushsection .rodata\n");
+        text.append(label).append(":\n");
+        for (int i = offset; i < offset + length; i += line) {
+            text.append(ascii ? "    .ascii \"" : "    .byte ");
+            for (int j = i; j < Math.min(i + line, offset + length); j++) {
+                int value = values[j] & 0xFF;
+                if (!ascii) {
+                    text.append(j == i ? "" : ",").append(value);
+                } else if (value >= ' ' && value <= '~' && value != '"' && value != '\\') {
+                    text.append((char) value);
+                } else {
+                    // Always three octal digits, so a following digit is not read into the escape
+                    text.append('\\').append(value >> 6).append(value >> 3 & 7).append(value & 7);
+                }
+            }
+            text.append(ascii ? "\"\n" : "\n");
+        }
+        text.append("    .popsection\n");
+    }
+
+    // ---- Moves ----
+
+    public void mov(Reg src, Reg dst) {
+        if (text != null) {
+            line("mov", src, dst);
+            return;
+        }
+        op(0, dst.size == 8, 0x89, src.code, dst);
+    }
+
+    public void mov(Reg src, Mem dst) {
+        if (text != null) {
+            line("mov", src, dst);
+            return;
+        }
+        op(src.size == 2 ? 0x66 : 0, src.size == 8, src.size == 1 ? 0x88 : 0x89, src.code, dst);
+    }
+
+    public void mov(Mem src, Reg dst) {
+        if (text != null) {
+            line("mov", src, dst);
+            return;
+        }
+        op(dst.size == 2 ? 0x66 : 0, dst.size == 8, dst.size == 1 ? 0x8A : 0x8B, dst.code, src);
+    }
+
+    // Loads a 32-bit immediate into a 32-bit register; the value is taken mod 2^32
+    public void mov(long imm, Reg dst) {
+        if (text != null) {
+            line("mov", imm, dst);
+            return;
+        }
+        rex(false, 0, 0, dst.code, false);
+        code.u8(0xB8 + (dst.code & 7));
+        code.u32((int) imm);
+    }
+
+    public void movabs(long imm, Reg dst) {
+        if (text != null) {
+            line("movabs", imm, dst);
+            return;
+        }
+        rex(true, 0, 0, dst.code, false);
+        code.u8(0xB8 + (dst.code & 7));
+        code.u64(imm);
+    }
+
+    // Stores an immediate byte
+    public void movb(int imm, Mem dst) {
+        if (text != null) {
+            line("movb", (long) imm, dst);
+            return;
+        }
+        op(0, false, 0xC6, 0, dst);
+        code.u8(imm);
+    }
+
+    public void movzbl(Mem src, Reg dst) {
+        if (text != null) {
+            line("movzbl", src, dst);
+            return;
+        }
+        op(0, false, 0x0FB6, dst.code, src);
+    }
+
+    public void lea(Mem src, Reg dst) {
+        if (text != null) {
+            line("lea", src, dst);
+            return;
+        }
+        op(0, dst.size == 8, 0x8D, dst.code, src);
+    }
+
+    // ---- Arithmetic ----
+
+    private static final List<String> ALU_OPS = List.of("add", "or", "adc", "sbb", "and", "sub", "xor", "cmp");
+
+    // add, sub, and, xor or cmp of a register or an immediate into a register or memory. Memory with an
+    // immediate is a byte operation.
+    public void alu(String operation, Object src, Object dst) {
+        int size = dst instanceof Reg ? ((Reg) dst).size : src instanceof Reg ? ((Reg) src).size : 1;
+        if (text != null) {
+            line(operation + (src instanceof Reg || dst instanceof Reg ? "" : "b"), src, dst);
+            return;
+        }
+        int n = ALU_OPS.indexOf(operation);
+        if (src instanceof Reg) {
+            op(size == 2 ? 0x66 : 0, size == 8, n * 8 + (size == 1 ? 0 : 1), ((Reg) src).code, dst);
+            return;
+        }
+        int imm = (int) (long) (Long) src;
+        if (size == 1) {
+            op(0, false, 0x80, n, dst);
+            code.u8(imm);
+        } else if (imm == (byte) imm) {
+            op(0, size == 8, 0x83, n, dst);
+            code.u8(imm);
+        } else {
+            op(0, size == 8, 0x81, n, dst);
+            code.u32(imm);
+        }
+    }
+
+    public void test(Reg src, Reg dst) {
+        if (text != null) {
+            line("test", src, dst);
+            return;
+        }
+        op(0, dst.size == 8, 0x85, src.code, dst);
+    }
+
+    // inc of a 64-bit register or of a byte in memory
+    public void inc(Object dst) {
+        unary(dst instanceof Reg ? "inc" : "incb", 0, dst);
+    }
+
+    // Adds one to a 64-bit memory operand
+    public void incq(Mem dst) {
+        if (text != null) {
+            line("incq", dst);
+            return;
+        }
+        op(0, true, 0xFF, 0, dst);
+    }
+
+    public void dec(Object dst) {
+        unary(dst instanceof Reg ? "dec" : "decb", 1, dst);
+    }
+
+    // not and neg of a 32-bit register
+    public void not(Reg dst) {
+        unary("not", 2, dst);
+    }
+
+    public void neg(Reg dst) {
+        unary("neg", 3, dst);
+    }
+
+    private void unary(String mnemonic, int n, Object dst) {
+        if (text != null) {
+            line(mnemonic, dst);
+            return;
+        }
+        if (dst instanceof Mem) {
+            op(0, false, 0xFE, n, dst);
+        } else {
+            op(0, ((Reg) dst).size == 8, n < 2 ? 0xFF : 0xF7, n, dst);
+        }
+    }
+
+    public void imul(long imm, Reg src, Reg dst) {
+        if (text != null) {
+            line("imul", imm, src, dst);
+            return;
+        }
+        if (imm == (byte) imm) {
+            op(0, false, 0x6B, dst.code, src);
+            code.u8((int) imm);
+        } else {
+            op(0, false, 0x69, dst.code, src);
+            code.u32((int) imm);
+        }
+    }
+
+    // shl or shr of a 32-bit register by an immediate or by %cl
+    public void shift(String operation, Object count, Reg dst) {
+        if (text != null) {
+            line(operation, count, dst);
+            return;
+        }
+        int n = operation.equals("shl") ? 4 : 5;
+        if (count instanceof Reg) {
+            op(0, false, 0xD3, n, dst);
+        } else {
+            op(0, false, 0xC1, n, dst);
+            code.u8((int) (long) (Long) count);
+        }
+    }
+
+    public void tzcnt(Reg src, Reg dst) {
+        if (text != null) {
+            line("tzcnt", src, dst);
+            return;
+        }
+        op(0xF3, false, 0x0FBC, dst.code, src);
+    }
+
+    public void bsr(Reg src, Reg dst) {
+        if (text != null) {
+            line("bsr", src, dst);
+            return;
+        }
+        op(0, false, 0x0FBD, dst.code, src);
+    }
+
+    public void repMovsb() {
+        if (text != null) {
+            text.append("    rep movsb\n");
+            return;
+        }
+        code.u8(0xF3);
+        code.u8(0xA4);
+    }
+
+    // ---- SSE and AVX2 ----
+
+    // movq from a 64-bit register into the low half of an xmm register
+    public void movq(Reg src, Reg dst) {
+        if (text != null) {
+            line("movq", src, dst);
+            return;
+        }
+        op(0x66, true, 0x0F6E, dst.code, src);
+    }
+
+    public void punpcklqdq(Reg src, Reg dst) {
+        if (text != null) {
+            line("punpcklqdq", src, dst);
+            return;
+        }
+        op(0x66, false, 0x0F6C, dst.code, src);
+    }
+
+    public void movdqu(Mem src, Reg dst) {
+        if (text != null) {
+            line("movdqu", src, dst);
+            return;
+        }
+        op(0xF3, false, 0x0F6F, dst.code, src);
+    }
+
+    public void movdqu(Reg src, Mem dst) {
+        if (text != null) {
+            line("movdqu", src, dst);
+            return;
+        }
+        op(0xF3, false, 0x0F7F, src.code, dst);
+    }
+
+    public void pxor(Reg src, Reg dst) {
+        if (text != null) {
+            line("pxor", src, dst);
+            return;
+        }
+        op(0x66, false, 0x0FEF, dst.code, src);
+    }
+
+    public void pcmpeqb(Mem src, Reg dst) {
+        if (text != null) {
+            line("pcmpeqb", src, dst);
+            return;
+        }
+        op(0x66, false, 0x0F74, dst.code, src);
+    }
+
+    public void pmovmskb(Reg src, Reg dst) {
+        if (text != null) {
+            line("pmovmskb", src, dst);
+            return;
+        }
+        op(0x66, false, 0x0FD7, dst.code, src);
+    }
+
+    public void vpxor(Reg src1, Reg src2, Reg dst) {
+        if (text != null) {
+            line("vpxor", src1, src2, dst);
+            return;
+        }
+        vex(0xEF, dst.code, src2.code, src1);
+    }
+
+    public void vpcmpeqb(Mem src1, Reg src2, Reg dst) {
+        if (text != null) {
+            line("vpcmpeqb", src1, src2, dst);
+            return;
+        }
+        vex(0x74, dst.code, src2.code, src1);
+    }
+
+    public void vpmovmskb(Reg src, Reg dst) {
+        if (text != null) {
+            line("vpmovmskb", src, dst);
+            return;
+        }
+        vex(0xD7, dst.code, 0, src);
+    }
+
+    public void vzeroupper() {
+        if (text != null) {
+            text.append("    vzeroupper\n");
+            return;
+        }
+        code.u8(0xC5);
+        code.u8(0xF8);
+        code.u8(0x77);
+    }
+
+    // ---- Control flow ----
+
+    public void push(Reg reg) {
+        if (text != null) {
+            line("push", reg);
+            return;
+        }
+        rex(false, 0, 0, reg.code, false);
+        code.u8(0x50 + (reg.code & 7));
+    }
+
+    public void pop(Reg reg) {
+        if (text != null) {
+            line("pop", reg);
+            return;
+        }
+        rex(false, 0, 0, reg.code, false);
+        code.u8(0x58 + (reg.code & 7));
+    }
+
+    public void ret() {
+        if (text != null) {
+            text.append("    ret\n");
+            return;
+        }
+        code.u8(0xC3);
+    }
+
+    // Calls a function of bf_wrapper.c or libc
+    public void call(String symbol) {
+        if (text != null) {
+            text.append("    call ").append(symbol).append('\n');
+            return;
+        }
+        code.u8(0xE8);
+        relocations.add(new Relocation(code.length, R_X86_64_PLT32, symbol, -4));
+        code.u32(0);
+    }
+
+    public void jmp(String label) {
+        jump("jmp", label);
+    }
+
+    // Conditional jump; condition is one of e, ne, b, ae, be, a
+    public void j(String condition, String label) {
+        jump("j" + condition, label);
+    }
+
+    private static final Map<String, Integer> CONDITIONS = Map.of("b", 2, "ae", 3, "e", 4, "ne", 5, "be", 6, "a", 7);
+
+    // Every jump gets room for a 32-bit displacement until relax picks its form
+    private void jump(String mnemonic, String label) {
+        if (text != null) {
+            text.append("    ").append(mnemonic).append(' ').append(label).append('\n');
+            return;
+        }
+        int condition = mnemonic.equals("jmp") ? -1 : CONDITIONS.get(mnemonic.substring(1));
+        Jump jump = new Jump(code.length, condition, label);
+        jumps.add(jump);
+        for (int i = 0; i < jump.length(); i++) {
+            code.u8(0);
+        }
+    }
+
+    // Turns the relocations against data labels into offsets into .rodata
+    private void resolveDataLabels() {
+        for (Relocation relocation : relocations) {
+            Integer data = relocation.symbol != null ? dataLabels.get(relocation.symbol) : null;
+            if (data != null) {
+                relocation.symbol = null;
+                relocation.addend += data;
+            }
+        }
+    }
+
+    // Picks the two-byte form for every jump whose target is in reach of a byte displacement, then
+    // encodes all of them. Like as, it starts with every jump short and grows the ones out of reach;
+    // growing a jump only moves other targets further away, so this repeats until no more jumps grow.
+    private void relax() {
+        if (relaxed) {
+            return;
+        }
+        relaxed = true;
+        resolveDataLabels();
+        for (Jump jump : jumps) {
+            jump.near = false;
+        }
+        int[] savedBefore = new int[jumps.size() + 1];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < jumps.size(); i++) {
+                Jump jump = jumps.get(i);
+                savedBefore[i + 1] = savedBefore[i] + jump.emitted - jump.length();
+            }
+            for (int i = 0; i < jumps.size(); i++) {
+                Jump jump = jumps.get(i);
+                if (!jump.near) {
+                    int displacement = relocate(target(jump), savedBefore) - (jump.at - savedBefore[i] + 2);
+                    if (displacement != (byte) displacement) {
+                        jump.near = true;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        Bytes relaxed = new Bytes();
+        int copied = 0;
+        for (Jump jump : jumps) {
+            relaxed.bytes(code.data, copied, jump.at - copied);
+            copied = jump.at + jump.emitted;
+            int end = relaxed.length + jump.length();
+            int displacement = relocate(target(jump), savedBefore) - end;
+            if (!jump.near) {
+                relaxed.u8(jump.condition < 0 ? 0xEB : 0x70 + jump.condition);
+                relaxed.u8(displacement);
+            } else {
+                if (jump.condition < 0) {
+                    relaxed.u8(0xE9);
+                } else {
+                    relaxed.u8(0x0F);
+                    relaxed.u8(0x80 + jump.condition);
+                }
+                relaxed.u32(displacement);
+            }
+        }
+        relaxed.bytes(code.data, copied, code.length - copied);
+        for (Relocation relocation : relocations) {
+            relocation.offset = relocate(relocation.offset, savedBefore);
+        }
+        code.data = relaxed.data;
+        code.length = relaxed.length;
+    }
+
+    private int target(Jump jump) {
+        Integer target = labels.get(jump.label);
+        if (target == null) {
+            throw new RuntimeException("Jump to undefined label: " + jump.label);
+        }
+        return target;
+    }
+
+    // Position of an instruction after the jumps before it have shrunk
+    private int relocate(int position, int[] savedBefore) {
+        int low = 0;
+        int high = jumps.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (jumps.get(mid).at < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return position - savedBefore[low];
+    }
+
+    // ---- Encoding ----
+
+    // Optional mandatory prefix, REX, one or two opcode bytes (0x0Fxx), then ModRM for reg and rm
+    private void op(int prefix, boolean w, int opcode, int reg, Object rm) {
+        if (prefix != 0) {
+            code.u8(prefix);
+        }
+        if (rm instanceof Reg) {
+            Reg r = (Reg) rm;
+            // spl, bpl, sil and dil need a REX prefix; al and cl, the only bytes used, do not
+            rex(w, reg, 0, r.code, false);
+        } else {
+            Mem m = (Mem) rm;
+            rex(w, reg, m.index == null ? 0 : m.index.code, m.base == null ? 0 : m.base.code, false);
+        }
+        if (opcode > 0xFF) {
+            code.u8(opcode >> 8);
+        }
+        code.u8(opcode & 0xFF);
+        modrm(reg, rm);
+    }
+
+    private void rex(boolean w, int reg, int index, int base, boolean force) {
+        int rex = 0x40 | (w ? 8 : 0) | (reg >> 3 & 1) << 2 | (index >> 3 & 1) << 1 | (base >> 3 & 1);
+        if (rex != 0x40 || force) {
+            code.u8(rex);
+        }
+    }
+
+    private void modrm(int reg, Object rm) {
+        int r = (reg & 7) << 3;
+        if (rm instanceof Reg) {
+            code.u8(0xC0 | r | (((Reg) rm).code & 7));
+            return;
+        }
+        Mem m = (Mem) rm;
+        if (m.symbol != null) {
+            // A data label may be defined after its use; resolveDataLabels tells them from the symbols
+            // of bf_wrapper.c
+            code.u8(0x05 | r);
+            relocations.add(new Relocation(code.length, R_X86_64_PC32, m.symbol, -4));
+            code.u32(0);
+            return;
+        }
+        int scale = Integer.numberOfTrailingZeros(m.scale) << 6;
+        if (m.base == null) {
+            code.u8(0x04 | r);
+            code.u8(scale | (m.index.code & 7) << 3 | 5);
+            code.u32(m.disp);
+            return;
+        }
+        int base = m.base.code & 7;
+        int mod = m.disp == 0 && base != 5 ? 0 : m.disp == (byte) m.disp ? 0x40 : 0x80;
+        if (m.index != null || base == 4) {
+            code.u8(mod | r | 4);
+            code.u8(scale | (m.index == null ? 4 : m.index.code & 7) << 3 | base);
+        } else {
+            code.u8(mod | r | base);
+        }
+        if (mod == 0x40) {
+            code.u8(m.disp);
+        } else if (mod == 0x80) {
+            code.u32(m.disp);
+        }
+    }
+
+    // Two-byte VEX prefix for a 256-bit 66.0F instruction on registers below 8 and a memory operand
+    // without extended registers
+    private void vex(int opcode, int reg, int vvvv, Object rm) {
+        code.u8(0xC5);
+        code.u8(0x80 | (~vvvv & 0xF) << 3 | 0x04 | 0x01);
+        code.u8(opcode);
+        modrm(reg, rm);
+    }
+
+    // ---- Text ----
+
+    private void line(String mnemonic, Object... operands) {
+        text.append("    ").append(mnemonic);
+        for (int i = 0; i < operands.length; i++) {
+            text.append(i == 0 ? " " : ", ").append(operand(operands[i]));
+        }
+        text.append('\n');
+        flushIfFull();
+    }
+
+    private void flushIfFull() {
+        if (out != null && text.length() >= FLUSH_LENGTH) {
+            write(false);
+        }
+    }
+
+    // Writes the text generated since the last flush to out, and flushes out
+    public void flush() {
+        write(true);
+    }
+
+    private void write(boolean flushOut) {
+        try {
+            out.append(text);
+            if (flushOut) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing the assembly code: " + e.getMessage(), e);
+        }
+        text.setLength(0);
+    }
+
+    private static String operand(Object operand) {
+        if (operand instanceof Reg) {
+            return "%" + ((Reg) operand).name;
+        }
+        if (operand instanceof Long) {
+            return "$" + operand;
+        }
+        Mem m = (Mem) operand;
+        if (m.symbol != null) {
+            return m.symbol + "(%rip)";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (m.disp != 0 || m.base == null) {
+            sb.append(m.disp);
+        }
+        sb.append('(');
+        if (m.base != null) {
+            sb.append('%').append(m.base.name);
+        }
+        if (m.index != null) {
+            sb.append(",%").append(m.index.name);
+            if (m.scale != 1) {
+                sb.append(',').append(m.scale);
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    // The text, or with out the text since the last flush
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    // ---- In-memory image ----
+
+    // Bytes of the image toImage writes: the code, one jump stub per function called, then the data
+    public int imageSize() {
+        relax();
+        return imageRodata() + rodata.length;
+    }
+
+    // The code and data linked to run at address base, with the symbols at the given addresses. Calls
+    // go through a stub after the code that jumps to the absolute address, so functions may be
+    // anywhere; the variables must be within 2 GB of the image. Ends the code like toElf.
+    public byte[] toImage(long base, Map<String, Long> symbols) {
+        relax();
+        List<String> functions = functions();
+        byte[] image = new byte[imageSize()];
+        System.arraycopy(code.data, 0, image, 0, code.length);
+        for (int i = 0; i < functions.size(); i++) {
+            Long address = symbols.get(functions.get(i));
+            if (address == null) {
+                throw new RuntimeException("Undefined symbol: " + functions.get(i));
+            }
+            // jmp *2(%rip), two bytes of int3, then the address it loads
+            int stub = imageStubs() + i * STUB_SIZE;
+            byte[] jump = {(byte) 0xFF, 0x25, 2, 0, 0, 0, (byte) 0xCC, (byte) 0xCC};
+            System.arraycopy(jump, 0, image, stub, jump.length);
+            for (int j = 0; j < 8; j++) {
+                image[stub + 8 + j] = (byte) (address >> (8 * j));
+            }
+        }
+        System.arraycopy(rodata.data, 0, image, imageRodata(), rodata.length);
+        for (Relocation relocation : relocations) {
+            long target;
+            if (relocation.type == R_X86_64_PLT32) {
+                target = base + imageStubs() + functions.indexOf(relocation.symbol) * STUB_SIZE;
+            } else if (relocation.symbol == null) {
+                target = base + imageRodata();
+            } else {
+                Long address = symbols.get(relocation.symbol);
+                if (address == null) {
+                    throw new RuntimeException("Undefined symbol: " + relocation.symbol);
+                }
+                target = address;
+            }
+            long value = target + relocation.addend - (base + relocation.offset);
+            if (value != (int) value) {
+                throw new RuntimeException("Symbol out of reach of the code: " + relocation.symbol);
+            }
+            for (int j = 0; j < 4; j++) {
+                image[relocation.offset + j] = (byte) (value >> (8 * j));
+            }
+        }
+        return image;
+    }
+
+    private static final int STUB_SIZE = 16;
+
+    // Functions called from the code, in order of first call
+    private List<String> functions() {
+        List<String> functions = new ArrayList<>();
+        for (Relocation relocation : relocations) {
+            if (relocation.type == R_X86_64_PLT32 && !functions.contains(relocation.symbol)) {
+                functions.add(relocation.symbol);
+            }
+        }
+        return functions;
+    }
+
+    private int imageStubs() {
+        return (code.length + 15) & -16;
+    }
+
+    private int imageRodata() {
+        return imageStubs() + functions().size() * STUB_SIZE;
+    }
+
+    // ---- ELF ----
+
+    private static final String[] SECTION_NAMES = {"", ".text", ".rodata", ".rela.text", ".symtab", ".strtab", ".shstrtab", ".note.GNU-stack"};
+
+    // The relocatable object: .text holding the function, .rodata, their relocations and the symbols.
+    // Ends the code; nothing may be emitted after it.
+    public byte[] toElf() {
+        relax();
+
+        // Symbols: null, the .text and .rodata sections, then the globals: the function and the
+        // symbols of bf_wrapper.c and libc in order of first use
+        List<String> externals = new ArrayList<>();
+        for (Relocation relocation : relocations) {
+            if (relocation.symbol != null && !externals.contains(relocation.symbol)) {
+                externals.add(relocation.symbol);
+            }
+        }
+        Bytes strtab = new Bytes();
+        strtab.u8(0);
+        Bytes symtab = new Bytes();
+        symbol(symtab, 0, 0, 0, 0, 0);
+        symbol(symtab, 0, 3, 1, 0, 0);
+        symbol(symtab, 0, 3, 2, 0, 0);
+        int firstGlobal = 3;
+        symbol(symtab, string(strtab, function), 0x12, 1, 0, code.length);
+        for (String external : externals) {
+            symbol(symtab, string(strtab, external), 0x10, 0, 0, 0);
+        }
+
+        Bytes rela = new Bytes();
+        for (Relocation relocation : relocations) {
+            int symbolIndex = relocation.symbol == null ? 2 : firstGlobal + 1 + externals.indexOf(relocation.symbol);
+            rela.u64(relocation.offset);
+            rela.u64(((long) symbolIndex << 32) | relocation.type);
+            rela.u64(relocation.addend);
+        }
+
+        Bytes shstrtab = new Bytes();
+        int[] names = new int[SECTION_NAMES.length];
+        for (int i = 0; i < SECTION_NAMES.length; i++) {
+            names[i] = i == 0 ? shstrtab.length : string(shstrtab, SECTION_NAMES[i]);
+            if (i == 0) {
+                shstrtab.u8(0);
+            }
+        }
+
+        Bytes out = new Bytes();
+        for (int i = 0; i < 64; i++) {
+            out.u8(0);
+        }
+        Bytes[] contents = {null, code, rodata, rela, symtab, strtab, shstrtab, null};
+        int[] alignments = {0, 16, 16, 8, 8, 1, 1, 1};
+        int[] offsets = new int[contents.length];
+        for (int i = 1; i < contents.length; i++) {
+            out.align(Math.max(alignments[i], 1));
+            offsets[i] = out.length;
+            if (contents[i] != null) {
+                out.bytes(contents[i].data, 0, contents[i].length);
+            }
+        }
+        out.align(8);
+        int sectionHeaders = out.length;
+        // name, type, flags, link, info, entry size
+        int[][] headers = {
+                {0, 0, 0, 0, 0, 0},
+                {names[1], 1, 0x6, 0, 0, 0},
+                {names[2], 1, 0x2, 0, 0, 0},
+                {names[3], 4, 0x40, 4, 1, 24},
+                {names[4], 2, 0, 5, firstGlobal, 24},
+                {names[5], 3, 0, 0, 0, 0},
+                {names[6], 3, 0, 0, 0, 0},
+                {names[7], 1, 0, 0, 0, 0},
+        };
+        for (int i = 0; i < headers.length; i++) {
+            int[] h = headers[i];
+            out.u32(h[0]);
+            out.u32(h[1]);
+            out.u64(h[2]);
+            out.u64(0);
+            out.u64(i == 0 ? 0 : offsets[i]);
+            out.u64(contents[i] == null ? 0 : contents[i].length);
+            out.u32(h[3]);
+            out.u32(h[4]);
+            out.u64(alignments[i]);
+            out.u64(h[5]);
+        }
+
+        // ELF header: 64-bit, little-endian, relocatable, x86-64
+        Bytes header = new Bytes();
+        header.u32(0x464C457F);
+        header.u8(2);
+        header.u8(1);
+        header.u8(1);
+        for (int i = 0; i < 9; i++) {
+            header.u8(0);
+        }
+        header.u16(1);
+        header.u16(62);
+        header.u32(1);
+        header.u64(0);
+        header.u64(0);
+        header.u64(sectionHeaders);
+        header.u32(0);
+        header.u16(64);
+        header.u16(0);
+        header.u16(0);
+        header.u16(64);
+        header.u16(headers.length);
+        header.u16(6);
+        System.arraycopy(header.data, 0, out.data, 0, 64);
+        return Arrays.copyOf(out.data, out.length);
+    }
+
+    private static int string(Bytes table, String value) {
+        int offset = table.length;
+        for (char c : value.toCharArray()) {
+            table.u8(c);
+        }
+        table.u8(0);
+        return offset;
+    }
+
+    private static void symbol(Bytes symtab, int name, int info, int section, long value, long size) {
+        symtab.u32(name);
+        symtab.u8(info);
+        symtab.u8(0);
+        symtab.u16(section);
+        symtab.u64(value);
+        symtab.u64(size);
+    }
+}
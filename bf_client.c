@@ -0,0 +1,150 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+
+// Client of BFDaemon: compiles a BF file like `java BFCompiler` or `java BFCompilerPE` would and writes
+// program.s, or program.o with --elf, in the current directory, without starting a JVM.
+//   ./bf_client <BFCompiler|BFCompilerPE> <bf-src-filepath> [flags...]
+// The daemon listens on /tmp/bfcompiler.sock, or on BF_DAEMON_SOCKET if that is set.
+#define BF_DEFAULT_SOCKET "/tmp/bfcompiler.sock"
+
+static int write_all(int fd, const char *data, size_t length) {
+    while (length > 0) {
+        ssize_t written = write(fd, data, length);
+        if (written < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return -1;
+        }
+        data += written;
+        length -= written;
+    }
+    return 0;
+}
+
+// Reads fd to its end into a malloc'd buffer
+static char *read_all(int fd, size_t *length) {
+    size_t capacity = 1 << 16;
+    char *data = malloc(capacity);
+    *length = 0;
+    while (data != NULL) {
+        if (*length == capacity) {
+            capacity *= 2;
+            char *grown = realloc(data, capacity);
+            if (grown == NULL) {
+                free(data);
+                return NULL;
+            }
+            data = grown;
+        }
+        ssize_t count = read(fd, data + *length, capacity - *length);
+        if (count < 0 && errno == EINTR) {
+            continue;
+        }
+        if (count < 0) {
+            free(data);
+            return NULL;
+        }
+        if (count == 0) {
+            break;
+        }
+        *length += count;
+    }
+    return data;
+}
+
+int main(int argc, char **argv) {
+    if (argc < 3) {
+        fprintf(stderr, "Usage: %s <BFCompiler|BFCompilerPE> <brainfuck_file.bf> [flags...]\n", argv[0]);
+        return 1;
+    }
+
+    FILE *source = fopen(argv[2], "rb");
+    if (source == NULL) {
+        perror("Error reading the Brainfuck file");
+        return 1;
+    }
+    size_t source_length;
+    char *source_code = read_all(fileno(source), &source_length);
+    fclose(source);
+    if (source_code == NULL) {
+        perror("Error reading the Brainfuck file");
+        return 1;
+    }
+
+    const char *socket_path = getenv("BF_DAEMON_SOCKET");
+    if (socket_path == NULL) {
+        socket_path = BF_DEFAULT_SOCKET;
+    }
+    struct sockaddr_un address;
+    memset(&address, 0, sizeof(address));
+    address.sun_family = AF_UNIX;
+    if (strlen(socket_path) >= sizeof(address.sun_path)) {
+        fprintf(stderr, "Socket path too long: %s\n", socket_path);
+        return 1;
+    }
+    strcpy(address.sun_path, socket_path);
+    int fd = socket(AF_UNIX, SOCK_STREAM, 0);
+    if (fd < 0 || connect(fd, (struct sockaddr *) &address, sizeof(address)) != 0) {
+        fprintf(stderr, "Cannot connect to the compile daemon on %s: %s\n", socket_path, strerror(errno));
+        return 1;
+    }
+
+    // The compiler and the flags on one line, then the source
+    char line[4096];
+    size_t line_length = snprintf(line, sizeof(line), "%s", argv[1]);
+    for (int i = 3; i < argc && line_length < sizeof(line); i++) {
+        line_length += snprintf(line + line_length, sizeof(line) - line_length, " %s", argv[i]);
+    }
+    if (line_length >= sizeof(line) - 1) {
+        fprintf(stderr, "Too many flags\n");
+        return 1;
+    }
+    line[line_length++] = '\n';
+    if (write_all(fd, line, line_length) != 0 || write_all(fd, source_code, source_length) != 0) {
+        perror("Error sending the request");
+        return 1;
+    }
+    shutdown(fd, SHUT_WR);
+
+    size_t response_length;
+    char *response = read_all(fd, &response_length);
+    close(fd);
+    if (response == NULL) {
+        perror("Error reading the response");
+        return 1;
+    }
+    char *end = memchr(response, '\n', response_length);
+    if (end == NULL) {
+        fprintf(stderr, "Malformed response from the compile daemon\n");
+        return 1;
+    }
+    *end = '\0';
+    char file[256];
+    size_t file_length;
+    if (sscanf(response, "ok %255s %zu", file, &file_length) != 2) {
+        fprintf(stderr, "Compile error: %s\n", strncmp(response, "error ", 6) == 0 ? response + 6 : response);
+        return 1;
+    }
+    char *body = end + 1;
+    size_t remaining = response_length - (body - response);
+    if (file_length > remaining) {
+        fprintf(stderr, "Truncated response from the compile daemon\n");
+        return 1;
+    }
+
+    // What the compiler printed follows the file
+    fwrite(body + file_length, 1, remaining - file_length, stdout);
+    FILE *output = fopen(file, "wb");
+    if (output == NULL || fwrite(body, 1, file_length, output) != file_length || fclose(output) != 0) {
+        perror("Error writing the output file");
+        return 1;
+    }
+    printf("%s code has been written to %s\n", strcmp(file, "program.o") == 0 ? "Object" : "Assembly", file);
+    return 0;
+}
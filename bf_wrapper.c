@@ -1,33 +1,245 @@
 // /*
+#define _GNU_SOURCE  // For REG_R12
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h> 
 #include <stddef.h>  // For NULL definition
+#include <errno.h>
+#include <signal.h>
+#include <ucontext.h>
+#include <unistd.h>
+#include <sys/mman.h>
 
 // Declare the assembly Brainfuck main function
 extern void bf_main(char *tape);
 
-int main() {
-    // Allocate memory for the Brainfuck tape, aligned to 16 bytes for SSE instructions
-    char *tape;
-    if (posix_memalign((void **)&tape, 16, 50000 * sizeof(char)) != 0) {
-        perror("Failed to allocate aligned memory for the tape");
-        return 1;
+// Buffered I/O for the code generated by BFCodeGen. The generated code keeps the output position in
+// %r12 and the end of the buffer in %rbx, stores bytes inline, and calls in here only when the buffer
+// is full, for input and at exit. Its start values are read from bf_out_pos and bf_out_end.
+#define BF_BUFFER_SIZE (1 << 16)
+
+static unsigned char bf_out_buf[BF_BUFFER_SIZE];
+unsigned char *bf_out_pos = bf_out_buf;
+unsigned char *bf_out_end = bf_out_buf + BF_BUFFER_SIZE;
+
+static unsigned char bf_in_buf[BF_BUFFER_SIZE];
+static size_t bf_in_pos = 0;
+static size_t bf_in_len = 0;
+static int bf_in_eof = 0;
+
+static void bf_write_all(const unsigned char *data, size_t length) {
+    while (length > 0) {
+        ssize_t written = write(STDOUT_FILENO, data, length);
+        if (written < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            perror("Failed to write the output");
+            exit(1);
+        }
+        data += written;
+        length -= written;
+    }
+}
+
+// Writes the buffer up to pos and returns the new output position, the start of the buffer
+unsigned char *bf_flush(unsigned char *pos) {
+    bf_write_all(bf_out_buf, pos - bf_out_buf);
+    return bf_out_buf;
+}
+
+// Appends length bytes of output and returns the new output position. The returned position is
+// always below bf_out_end, as the generated code stores the next byte before it checks, so a block
+// that would fill the buffer flushes it first. Large blocks are written directly after the flush.
+unsigned char *bf_write(unsigned char *pos, const unsigned char *data, size_t length) {
+    if (length >= (size_t) (bf_out_end - pos)) {
+        pos = bf_flush(pos);
+        if (length > BF_BUFFER_SIZE / 2) {
+            bf_write_all(data, length);
+            return pos;
+        }
+    }
+    memcpy(pos, data, length);
+    return pos + length;
+}
+
+// Returns the next input byte, or -1 at the end of input, which stores 255 in the cell as getchar
+// did. The output up to pos is flushed before waiting for more input, so prompts appear in time;
+// the new output position is left in bf_out_pos.
+int bf_read(unsigned char *pos) {
+    bf_out_pos = pos;
+    if (bf_in_pos == bf_in_len) {
+        if (bf_in_eof) {
+            return -1;
+        }
+        bf_out_pos = bf_flush(pos);
+        ssize_t length;
+        do {
+            length = read(STDIN_FILENO, bf_in_buf, BF_BUFFER_SIZE);
+        } while (length < 0 && errno == EINTR);
+        if (length <= 0) {
+            bf_in_eof = 1;
+            return -1;
+        }
+        bf_in_pos = 0;
+        bf_in_len = length;
     }
+    return bf_in_buf[bf_in_pos++];
+}
+
+// Profile of a program compiled with --profile. The generated code calls bf_profile_start with its
+// table of sites and counts the runs of site i in counter i of the array it gets back. At exit the
+// counters are written to BF_PROFILE, or bf_profile.tsv, one line per site: the byte offset, line
+// and column of the site's '[' in the source, the kind of site and its count. A loop counts its
+// iterations; the loops the compiler replaced count how often they ran.
+static const unsigned char *bf_profile_sites;
+static unsigned int bf_profile_count;
+static unsigned long long *bf_profile_counters;
+
+// Reads the 32-bit little-endian value at index of the site table, which need not be aligned
+static unsigned int bf_profile_field(size_t index) {
+    unsigned int value;
+    memcpy(&value, bf_profile_sites + 4 * index, sizeof(value));
+    return value;
+}
+
+static void bf_profile_write(void) {
+    static const char *const kinds[] = {"loop", "multiply", "scan", "fill", "shift"};
+    const char *path = getenv("BF_PROFILE");
+    if (path == NULL || *path == '\0') {
+        path = "bf_profile.tsv";
+    }
+    FILE *out = fopen(path, "w");
+    if (out == NULL) {
+        perror("Failed to write the profile");
+        return;
+    }
+    fprintf(out, "offset\tline\tcolumn\tkind\tcount\n");
+    for (unsigned int i = 0; i < bf_profile_count; i++) {
+        unsigned int kind = bf_profile_field(1 + 4 * i + 3);
+        fprintf(out, "%d\t%u\t%u\t%s\t%llu\n", (int) bf_profile_field(1 + 4 * i), bf_profile_field(1 + 4 * i + 1),
+                bf_profile_field(1 + 4 * i + 2), kind < sizeof(kinds) / sizeof(kinds[0]) ? kinds[kind] : "unknown", bf_profile_counters[i]);
+    }
+    fclose(out);
+}
 
-    // Ensure that tape allocation was successful
+unsigned long long *bf_profile_start(const unsigned char *sites) {
+    bf_profile_sites = sites;
+    bf_profile_count = bf_profile_field(0);
+    bf_profile_counters = calloc(bf_profile_count + 1, sizeof(unsigned long long));
+    if (bf_profile_counters == NULL) {
+        perror("Failed to allocate the profile counters");
+        exit(1);
+    }
+    atexit(bf_profile_write);
+    return bf_profile_counters;
+}
+
+// The tape is a reserved region of address space with an inaccessible guard area on each side. Only
+// its start is readable and writable at first; a fault past that grows it, and a fault in a guard
+// area stops the program with an error, so the generated code needs no bounds checks. BF_TAPE_SIZE
+// in the environment sets the most the tape may grow to, in bytes.
+#define BF_TAPE_INITIAL (1 << 16)
+#define BF_TAPE_DEFAULT_MAX (1UL << 30)
+// TAPE_GUARD of BFCodeGen, which touches the cells on the way wherever an access would reach further
+// than that from the cells touched before, so that a fault past the tape always lands in a guard area
+#define BF_TAPE_GUARD (1 << 20)
+
+static char *bf_tape;
+static size_t bf_tape_committed;
+static size_t bf_tape_max;
+static size_t bf_page_size;
+
+// Stops the program from the fault handler: writes the output the generated code buffered up to its
+// position in %r12, then message, and exits with status 1. Only async-signal-safe calls are used.
+static void bf_fault_exit(void *context, const char *message, size_t length) {
+    unsigned char *pos = bf_out_buf;
+#ifdef REG_R12
+    pos = (unsigned char *) ((ucontext_t *) context)->uc_mcontext.gregs[REG_R12];
+#else
+    (void) context;
+#endif
+    if (pos >= bf_out_buf && pos < bf_out_end) {
+        const unsigned char *data = bf_out_buf;
+        while (data < pos) {
+            ssize_t written = write(STDOUT_FILENO, data, pos - data);
+            if (written < 0 && errno == EINTR) {
+                continue;
+            }
+            if (written <= 0) {
+                break;
+            }
+            data += written;
+        }
+    }
+    write(STDERR_FILENO, message, length);
+    _exit(1);
+}
+
+static void bf_fault(int signo, siginfo_t *info, void *context) {
+    char *address = (char *) info->si_addr;
+    if (address >= bf_tape + bf_tape_committed && address < bf_tape + bf_tape_max) {
+        // Double the tape, or more if the access is further out
+        size_t size = bf_tape_committed * 2;
+        size_t needed = (address - bf_tape) / bf_page_size * bf_page_size + bf_page_size;
+        if (size < needed) {
+            size = needed;
+        }
+        if (size > bf_tape_max) {
+            size = bf_tape_max;
+        }
+        if (mprotect(bf_tape + bf_tape_committed, size - bf_tape_committed, PROT_READ | PROT_WRITE) == 0) {
+            bf_tape_committed = size;
+            return;
+        }
+        static const char message[] = "Out of memory for the tape\n";
+        bf_fault_exit(context, message, sizeof(message) - 1);
+    } else if (address >= bf_tape - BF_TAPE_GUARD && address < bf_tape + bf_tape_max + BF_TAPE_GUARD) {
+        static const char message[] = "Tape pointer out of bounds\n";
+        bf_fault_exit(context, message, sizeof(message) - 1);
+    }
+    // Not the tape: fault again without the handler
+    signal(signo, SIG_DFL);
+}
+
+static char *bf_allocate_tape(void) {
+    bf_page_size = sysconf(_SC_PAGESIZE);
+    bf_tape_max = BF_TAPE_DEFAULT_MAX;
+    const char *max = getenv("BF_TAPE_SIZE");
+    if (max != NULL && strtoul(max, NULL, 10) > 0) {
+        bf_tape_max = strtoul(max, NULL, 10);
+    }
+    bf_tape_max = (bf_tape_max + bf_page_size - 1) / bf_page_size * bf_page_size;
+    bf_tape_committed = bf_tape_max < BF_TAPE_INITIAL ? bf_tape_max : BF_TAPE_INITIAL;
+
+    char *region = mmap(NULL, bf_tape_max + 2 * BF_TAPE_GUARD, PROT_NONE, MAP_PRIVATE | MAP_ANONYMOUS | MAP_NORESERVE, -1, 0);
+    if (region == MAP_FAILED) {
+        return NULL;
+    }
+    bf_tape = region + BF_TAPE_GUARD;
+    if (mprotect(bf_tape, bf_tape_committed, PROT_READ | PROT_WRITE) != 0) {
+        return NULL;
+    }
+
+    struct sigaction action;
+    memset(&action, 0, sizeof(action));
+    action.sa_sigaction = bf_fault;
+    action.sa_flags = SA_SIGINFO;
+    sigemptyset(&action.sa_mask);
+    sigaction(SIGSEGV, &action, NULL);
+    return bf_tape;
+}
+
+int main() {
+    // Allocate the tape; mmap returns it page aligned and zeroed, as the SSE code expects
+    char *tape = bf_allocate_tape();
     if (tape == NULL) {
         perror("Failed to allocate memory for the tape");
         return 1;
     }
-    // After allocating the tape
-    memset(tape, 0, 50000 * sizeof(char));
 
     // Call the Brainfuck main function implemented in assembly
     bf_main(tape);
-
-    // Free the allocated tape memory
-    // free(tape);
     return 0;
 }
 // */
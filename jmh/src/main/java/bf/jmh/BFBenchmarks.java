@@ -0,0 +1,255 @@
+package bf.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+
+/**
+ * JMH benchmarks for the phases of the BF compilers and for the interpreter, run on every program in
+ * benches/ and benches_winp/. The compilers are default-package classes, which cannot be named from a
+ * package, so they are called through constant method handles that the JIT inlines like direct calls.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BFBenchmarks {
+
+    private static final MethodHandle CLEAN_CODE = handle("BFCompiler", "cleanCode", List.of(String.class), String.class);
+    private static final MethodHandle PARSE = handle("BFIR", "parse", List.of(String.class), List.class);
+    private static final MethodHandle FOLD_RUNS = handle("BFPasses", "foldRuns", List.of(List.class), List.class);
+    private static final MethodHandle OPTIMIZE_SCAN_LOOPS = handle("BFPasses", "optimizeScanLoops", List.of(List.class), List.class);
+    private static final MethodHandle OPTIMIZE_SIMPLE_LOOPS = handle("BFPasses", "optimizeSimpleLoops", List.of(List.class), List.class);
+    private static final MethodHandle OPTIMIZE_RANGES = handle("BFPasses", "optimizeRanges", List.of(List.class), List.class);
+    private static final MethodHandle PARTIAL_EVALUATE = handle("BFCompilerPE", "partialEvaluate", List.of(String.class), "BFCompilerPE$PartialEvaluationResult");
+    private static final MethodHandle GENERATE_ASSEMBLY_CODE = handle("BFCompilerPE", "generateAssemblyCode", List.of(List.class, "BFCompilerPE$PartialEvaluationResult"), String.class);
+    private static final MethodHandle INTERPRETER_CLEAN_CODE = handle("BFInterpreter", "clean_code", List.of(StringBuilder.class), StringBuilder.class);
+    private static final MethodHandle BUILD_BRACE_MAP = handle("BFInterpreter", "build_brace_map", List.of(StringBuilder.class), HashMap.class);
+    private static final MethodHandle INTERPRETER_LOOP = handle("BFInterpreter", "interpreter_loop", List.of(StringBuilder.class, HashMap.class), void.class);
+    private static final MethodHandle DECODE = handle("BFInterpreter", "decode", List.of(StringBuilder.class), "BFInterpreter$DecodedProgram");
+    private static final MethodHandle DECODED_LOOP = handle("BFInterpreter", "decoded_loop", List.of("BFInterpreter$DecodedProgram"), void.class);
+
+    // Input fed to the programs that read stdin, as in measure_winp.py
+    private static final Map<String, String> INPUT_FILES = Map.of(
+            "benches_winp/Sudoku.bf", "benches_winp/inpSu.txt",
+            "benches_winp/inputsimple.bf", "benches_winp/inp1.txt",
+            "benches_winp/inputsimple2.bf", "benches_winp/inp2.txt");
+
+    @State(Scope.Benchmark)
+    public static class Program {
+        @Param({"benches/bench.b", "benches/bottles.b", "benches/deadcodetest.b", "benches/hanoi.b", "benches/hello.b",
+                "benches/long.b", "benches/loopremove.b", "benches/mandel.b", "benches/serptri.b", "benches/twinkle.b",
+                "benches_winp/Sudoku.bf", "benches_winp/inputsimple.bf", "benches_winp/inputsimple2.bf"})
+        public String file;
+
+        String srcBfCode;
+        String bfCode;
+        byte[] input;
+
+        @Setup(Level.Trial)
+        public void load() throws Throwable {
+            // Run from jmh/ by default; -Dbf.root=<repository root> to run from elsewhere
+            Path root = Paths.get(System.getProperty("bf.root", ".."));
+            srcBfCode = Files.readString(root.resolve(file));
+            bfCode = (String) (Object) CLEAN_CODE.invokeExact((Object) srcBfCode);
+            String inputFile = INPUT_FILES.get(file);
+            input = inputFile == null ? new byte[0] : Files.readAllBytes(root.resolve(inputFile));
+        }
+    }
+
+    // The loop passes rewrite the IR in place, so every invocation gets a freshly parsed program.
+    // The GC profiler counts the allocation of that parse too; subtract findLoops to get the pass alone.
+    @State(Scope.Thread)
+    public static class ParsedProgram {
+        Object program;
+
+        @Setup(Level.Invocation)
+        public void parse(Program p) throws Throwable {
+            program = PARSE.invokeExact((Object) p.bfCode);
+        }
+    }
+
+    // The IR optimizeScanLoops gets from the pass manager: parsed and folded. Subtract foldRuns to get
+    // the pass alone.
+    @State(Scope.Thread)
+    public static class FoldedProgram {
+        Object program;
+
+        @Setup(Level.Invocation)
+        public void fold(Program p) throws Throwable {
+            program = PARSE.invokeExact((Object) p.bfCode);
+            program = FOLD_RUNS.invokeExact(program);
+        }
+    }
+
+    // The IR optimizeSimpleLoops gets with -O: folded, and with the scan loops replaced. Subtract
+    // optimizeScanLoops to get the pass alone.
+    @State(Scope.Thread)
+    public static class ScannedProgram {
+        Object program;
+
+        @Setup(Level.Invocation)
+        public void scan(Program p) throws Throwable {
+            program = PARSE.invokeExact((Object) p.bfCode);
+            program = FOLD_RUNS.invokeExact(program);
+            program = OPTIMIZE_SCAN_LOOPS.invokeExact(program);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EvaluatedProgram {
+        Object program;
+        Object peResult;
+
+        @Setup(Level.Trial)
+        public void evaluate(Program p) throws Throwable {
+            peResult = PARTIAL_EVALUATE.invokeExact((Object) p.bfCode);
+            String remainingCode = (String) peResult.getClass().getField("remainingCode").get(peResult);
+            program = PARSE.invokeExact((Object) remainingCode);
+            program = FOLD_RUNS.invokeExact(program);
+            program = OPTIMIZE_SCAN_LOOPS.invokeExact(program);
+            program = OPTIMIZE_SIMPLE_LOOPS.invokeExact(program);
+            program = OPTIMIZE_RANGES.invokeExact(program);
+        }
+    }
+
+    // The interpreters print to System.out and read System.in; both are swapped for the benchmark
+    @State(Scope.Thread)
+    public static class InterpretedProgram {
+        Object code;
+        Object braceMap;
+        Object decoded;
+        private PrintStream savedOut;
+        private InputStream savedIn;
+
+        @Setup(Level.Trial)
+        public void prepare(Program p) throws Throwable {
+            code = INTERPRETER_CLEAN_CODE.invokeExact((Object) new StringBuilder(p.srcBfCode));
+            braceMap = BUILD_BRACE_MAP.invokeExact(code);
+            decoded = DECODE.invokeExact(code);
+            savedOut = System.out;
+            savedIn = System.in;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        @Setup(Level.Invocation)
+        public void resetInput(Program p) {
+            System.setIn(new ByteArrayInputStream(p.input));
+        }
+
+        @TearDown(Level.Trial)
+        public void restore() {
+            System.setOut(savedOut);
+            System.setIn(savedIn);
+        }
+    }
+
+    @Benchmark
+    public Object cleanCode(Program p) throws Throwable {
+        return CLEAN_CODE.invokeExact((Object) p.srcBfCode);
+    }
+
+    // BFIR.parse replaced findLoops: it matches the brackets and builds the loop tree in one pass
+    @Benchmark
+    public Object findLoops(Program p) throws Throwable {
+        return PARSE.invokeExact((Object) p.bfCode);
+    }
+
+    @Benchmark
+    public Object foldRuns(ParsedProgram parsed) throws Throwable {
+        return FOLD_RUNS.invokeExact(parsed.program);
+    }
+
+    @Benchmark
+    public Object optimizeScanLoops(FoldedProgram folded) throws Throwable {
+        return OPTIMIZE_SCAN_LOOPS.invokeExact(folded.program);
+    }
+
+    @Benchmark
+    public Object optimizeSimpleLoops(ScannedProgram scanned) throws Throwable {
+        return OPTIMIZE_SIMPLE_LOOPS.invokeExact(scanned.program);
+    }
+
+    @Benchmark
+    public Object partialEvaluate(Program p) throws Throwable {
+        return PARTIAL_EVALUATE.invokeExact((Object) p.bfCode);
+    }
+
+    @Benchmark
+    public Object generateAssemblyCode(EvaluatedProgram evaluated) throws Throwable {
+        return GENERATE_ASSEMBLY_CODE.invokeExact(evaluated.program, evaluated.peResult);
+    }
+
+    @Benchmark
+    public void interpreterLoop(InterpretedProgram interpreted) throws Throwable {
+        INTERPRETER_LOOP.invokeExact(interpreted.code, interpreted.braceMap);
+    }
+
+    @Benchmark
+    public void decodedLoop(InterpretedProgram interpreted) throws Throwable {
+        DECODED_LOOP.invokeExact(interpreted.decoded);
+    }
+
+    // Looks up a public static method of a default-package class. Every parameter and the return type
+    // is erased to Object so call sites can use invokeExact without naming the classes.
+    private static MethodHandle handle(String className, String methodName, List<Object> parameterTypes, Object returnType) {
+        try {
+            Class<?>[] parameters = new Class<?>[parameterTypes.size()];
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = resolve(parameterTypes.get(i));
+            }
+            MethodType type = MethodType.methodType(resolve(returnType), parameters);
+            MethodHandle handle = MethodHandles.publicLookup().findStatic(Class.forName(className), methodName, type);
+            return handle.asType(type.erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + className + "." + methodName, e);
+        }
+    }
+
+    private static Class<?> resolve(Object type) throws ClassNotFoundException {
+        return type instanceof Class ? (Class<?>) type : Class.forName((String) type);
+    }
+
+    // Runs the benchmarks with the GC profiler, so allocation per operation is always reported.
+    // Accepts the usual JMH command line options, e.g. -p file=benches/hello.b or a benchmark regex.
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,4 @@
+Starts with two moves left and one right from cell 0
+Both moves left stop at cell 0 with a notice each and the move right goes to cell 1
+so the interpreter prints the two notices and then 1 in both modes
+<<>+<++++++[>++++++++<-]>.
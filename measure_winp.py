@@ -23,16 +23,33 @@ winp_bench_folder = "benches_winp"
 # Number of runs to average
 num_runs = 10
 
+# Socket of a running BFDaemon; when it exists, bf_client compiles through it instead of a new JVM
+daemon_socket = os.environ.get("BF_DAEMON_SOCKET", "/tmp/bfcompiler.sock")
+
+# Without a daemon, every file is compiled up front by the batch mode of each compiler, in one JVM
+# per compiler, into batch_folder/<compiler>/<file>.default.s
+batch_folder = "batch_out"
+
+def use_daemon():
+    return os.path.exists(daemon_socket) and os.path.exists("bf_client")
+
+def compile_all():
+    sources = [os.path.join(benchmark_folder, file) for file in files_no_input]
+    sources += [os.path.join(winp_bench_folder, file) for file, _ in files_with_input]
+    for compiler in ["BFCompiler", "BFCompilerPE"]:
+        subprocess.run(["java", "-Xmx64G", compiler, "--batch", *sources, "--out", os.path.join(batch_folder, compiler)], check=True)
+
 def compile_and_link(compiler, source_file):
-    # Compile the source file using the specified compiler
-    compiler_command = ["java", "-Xmx64G", compiler, source_file]
-    
-    # Run the compiler command
-    subprocess.run(compiler_command, check=True)
+    # Compile the source file using the specified compiler, or take what the batch compiled
+    if use_daemon():
+        subprocess.run(["./bf_client", compiler, source_file], check=True)
+        assembly = "program.s"
+    else:
+        assembly = os.path.join(batch_folder, compiler, os.path.basename(source_file) + ".default.s")
 
     # Compile the wrapper and assemble the output
     subprocess.run(["gcc", "-c", "bf_wrapper.c", "-o", "bf_wrapper.o"], check=True)
-    subprocess.run(["as", "-o", "program.o", "program.s"], check=True)
+    subprocess.run(["as", "-o", "program.o", assembly], check=True)
     subprocess.run(["gcc", "-o", "bf_program", "bf_wrapper.o", "program.o", "-lc"], check=True)
 
 def get_average_user_time(input_file=None):
@@ -104,5 +121,7 @@ def process_files():
         print("=======================================")
 
 if __name__ == "__main__":
+    if not use_daemon():
+        compile_all()
     process_files()
     print("All files processed.")
@@ -0,0 +1,6 @@
+Reads a byte then prints 65536 bytes known at compile time and then the byte read
+BFCompilerPE turns the loops into one constant output that exactly fills the output buffer
+of bf_wrapper so the last output stores one byte after it unless bf_write flushes first
+,>++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+[>++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+[>+....<-]<-]<.
@@ -0,0 +1,103 @@
+#!/bin/bash
+# Compiles programs that move off the tape and checks that each run stops with "Tape pointer out of
+# bounds" and exit status 1, after the output it printed before, or that it finishes with the right
+# output. The large programs are generated here rather than kept in the tree. BFCompilerNative runs
+# the programs inside the JVM, on its own tape of 1 GB, and needs JDK 21.
+# Run from the repository root after compiling the Java sources, with CLASSES set if the classes are
+# elsewhere: tests/bounds.sh
+set -u
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+gcc -c bf_wrapper.c -o "$work/bf_wrapper.o" || exit 1
+classes=${CLASSES:-$(pwd)}
+failed=0
+
+# repeat <char> <count>
+repeat() {
+    head -c "$2" /dev/zero | tr '\0' "$1"
+}
+
+# check <name> <expected output> <expected status> <compiler and flags>...
+check() {
+    local name=$1 expected=$2 status=$3
+    shift 3
+    (
+        cd "$work" && rm -f program.s program.o bf_program &&
+        java -Xss64m -cp "$classes" "$1" "$name.b" "${@:2}" > /dev/null &&
+        { [ ! -f program.s ] || as -o program.o program.s; } &&
+        gcc -o bf_program bf_wrapper.o program.o -lc
+    ) || { echo "FAIL $name $*: does not compile"; failed=$((failed + 1)); return; }
+    (cd "$work" && BF_TAPE_SIZE=1048576 timeout 60 ./bf_program < /dev/null > out.txt 2> err.txt)
+    result $name $? "$expected" $status "$@"
+}
+
+# check_native <name> <expected output> <expected status> <flags>...
+check_native() {
+    local name=$1 expected=$2 status=$3
+    shift 3
+    (cd "$work" && timeout 60 java --enable-preview --enable-native-access=ALL-UNNAMED -Xss64m -cp "$classes" \
+        BFCompilerNative "$name.b" "$@" < /dev/null > out.txt 2> err.txt)
+    result $name $? "$expected" $status BFCompilerNative "$@"
+}
+
+# result <name> <status> <expected output> <expected status> <compiler and flags>...
+result() {
+    local name=$1 actual=$2 expected=$3 status=$4
+    shift 4
+    if [ "$actual" != "$status" ] || [ "$(cat "$work/out.txt")" != "$expected" ] \
+            || { [ "$status" = 1 ] && [ "$(cat "$work/err.txt")" != "Tape pointer out of bounds" ]; }; then
+        echo "FAIL $name $*: status $actual, output '$(cat "$work/out.txt")', error '$(cat "$work/err.txt")'"
+        failed=$((failed + 1))
+    else
+        echo "ok   $name $*"
+    fi
+}
+
+# A move more than the tape guard to the left in one folded run
+{ repeat '<' 1200000; printf '+.'; } > "$work/farleft.b"
+# A scan with a stride wider than the tape guard
+{ printf '+['; repeat '<' 1200000; printf ']'; } > "$work/widescan.b"
+# Prints A and then moves off the start of the tape
+printf '++++++++[>++++++++<-]>+.<<<<<+' > "$work/outputfault.b"
+# Past the cells the partial evaluator keeps track of, and off the start right away
+{ repeat '>' 60000; repeat '+' 65; printf '.'; } > "$work/farright.b"
+printf '<+.' > "$work/leftone.b"
+# A scan that takes the vector loop off the start of the tape
+printf '+[<]' > "$work/leftscan.b"
+# Never ends: moves right until the tape cannot grow
+printf '+[>+]' > "$work/endless.b"
+# Moves right a megabyte at a time until it leaves the tape, touching one cell per megabyte
+{ printf '+['; repeat '>' 1048576; printf '+]'; } > "$work/farendless.b"
+# A scan and a multiply loop that run past the cells the partial evaluator keeps track of
+{ for i in $(seq 50); do printf '+'; repeat '>' 1000; done; repeat '<' 50000
+  printf '['; repeat '>' 1000; printf ']'; repeat '+' 65; printf '.'; } > "$work/rightscan.b"
+{ repeat '>' 49990; printf '+++++[-'; repeat '>' 20; repeat '+' 13; repeat '<' 20; printf ']'; repeat '>' 20; printf '.'; } > "$work/rightmultiply.b"
+
+for compiler in BFCompiler BFCompilerPE; do
+    for flags in "" "-O" "-O --elf"; do
+        check farleft "" 1 $compiler $flags
+        check widescan "" 1 $compiler $flags
+        check outputfault "A" 1 $compiler $flags
+        check farright "A" 0 $compiler $flags
+        check leftone "" 1 $compiler $flags
+        check leftscan "" 1 $compiler $flags
+        check endless "" 1 $compiler $flags
+        check farendless "" 1 $compiler $flags
+        check rightscan "A" 0 $compiler $flags
+        check rightmultiply "A" 0 $compiler $flags
+    done
+done
+
+for flags in "" "-O"; do
+    check_native farleft "" 1 $flags
+    check_native widescan "" 1 $flags
+    check_native outputfault "A" 1 $flags
+    check_native farright "A" 0 $flags
+    check_native leftone "" 1 $flags
+    check_native leftscan "" 1 $flags
+    check_native farendless "" 1 $flags
+    check_native rightscan "A" 0 $flags
+    check_native rightmultiply "A" 0 $flags
+done
+
+[ "$failed" = 0 ] && echo "All passed" || { echo "$failed failed"; exit 1; }